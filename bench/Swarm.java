@@ -0,0 +1,552 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a swarm of peers on loopback ports, either all in this JVM or as one process per peer, and measures the time
+ * each peer takes to complete the file, the aggregate download throughput, the CPU time and the memory used. The
+ * scenario file has one "key value" per line:
+ * - Peers: number of peers (default 4)
+ * - Seeders: number of peers that start with the file (default 1)
+ * - FileSize, PieceSize: as in Common.cfg (default 10000000 and 32768)
+ * - Files: number of files the content is split into, as File lines of Common.cfg (default 1, a single file)
+ * - Launch: inprocess or process (default inprocess)
+ * - BasePort: listening port of the first peer, the others follow (default 17001)
+ * - Dir: working directory of the swarm, relative to the scenario file (default swarm)
+ * - Timeout: seconds before the swarm is stopped (default 300)
+ * Any other line is copied into the generated Common.cfg.
+ *
+ * Usage: java Swarm scenario.cfg
+ */
+public class Swarm
+{
+    private static final String LAUNCH_INPROCESS = "inprocess";
+    private static final String LAUNCH_PROCESS = "process";
+    private static final int FIRST_PEER_ID = 1001;
+
+    private int numOfPeers = 4;
+    private int numOfSeeders = 1;
+    private long fileSize = 10000000;
+    private int pieceSize = 32768;
+    private int numOfFiles = 1;
+    private String launch = LAUNCH_INPROCESS;
+    private int basePort = 17001;
+    private File dir;
+    private int timeoutSec = 300;
+    private final List<String> commonLines = new ArrayList<>();
+
+    /* results */
+    private LocalDateTime startTime;
+    private long elapsedMs;
+    private long cpuMs;
+    private boolean timedOut = false;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: java Swarm scenario.cfg");
+            return;
+        }
+
+        Swarm swarm = new Swarm();
+        swarm.readScenario(new File(args[0]));
+        swarm.prepare();
+
+        System.out.println("Scenario: " + swarm.numOfPeers + " peers, " + swarm.numOfSeeders + " seeders, "
+                + swarm.fileSize + " bytes in pieces of " + swarm.pieceSize + ", " + swarm.launch + ", in " + swarm.dir);
+
+        boolean ok = swarm.launch.equals(LAUNCH_PROCESS) ? swarm.runProcesses() : swarm.runInProcess();
+        ok &= swarm.report();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Read the scenario file
+     * @param scenario path of the file
+     * @throws IOException
+     */
+    private void readScenario(File scenario) throws IOException
+    {
+        String dirName = "swarm";
+        BufferedReader reader = new BufferedReader(new FileReader(scenario));
+
+        String st;
+        while ((st = reader.readLine()) != null)
+        {
+            String[] tokens = st.trim().split("\\s+");
+            if (tokens.length < 2 || tokens[0].startsWith("#")) continue;
+
+            switch (tokens[0])
+            {
+                case "Peers":
+                    numOfPeers = Integer.parseInt(tokens[1]);
+                    break;
+                case "Seeders":
+                    numOfSeeders = Integer.parseInt(tokens[1]);
+                    break;
+                case "FileSize":
+                    fileSize = Long.parseLong(tokens[1]);
+                    break;
+                case "PieceSize":
+                    pieceSize = Integer.parseInt(tokens[1]);
+                    break;
+                case "Files":
+                    numOfFiles = Integer.parseInt(tokens[1]);
+                    break;
+                case "Launch": // inprocess or process
+                    launch = tokens[1];
+                    break;
+                case "BasePort":
+                    basePort = Integer.parseInt(tokens[1]);
+                    break;
+                case "Dir":
+                    dirName = tokens[1];
+                    break;
+                case "Timeout": // seconds
+                    timeoutSec = Integer.parseInt(tokens[1]);
+                    break;
+                case "FileName": // always TheFile.dat
+                    break;
+                default:
+                    commonLines.add(st.trim());
+            }
+        }
+        reader.close();
+
+        if (numOfSeeders < 1 || numOfSeeders >= numOfPeers)
+            throw new IOException("Seeders must be at least 1 and less than Peers");
+        if (numOfFiles < 1 || numOfFiles > fileSize)
+            throw new IOException("Files must be at least 1 and at most FileSize");
+        dir = new File(scenario.getCanonicalFile().getParentFile(), dirName);
+    }
+
+    /**
+     * Generate Common.cfg, PeerInfo.cfg and the file of the seeders, remove the output of a previous run
+     * @throws IOException
+     */
+    private void prepare() throws IOException
+    {
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+
+        try (PrintWriter out = new PrintWriter(new File(dir, "Common.cfg"), "UTF-8"))
+        {
+            out.println("FileName TheFile.dat");
+            out.println("FileSize " + fileSize);
+            out.println("PieceSize " + pieceSize);
+            if (numOfFiles > 1)
+                for (int f = 0; f < numOfFiles; f++)
+                    out.println("File " + getPartSize(f) + " part" + f + ".dat");
+            for (String line : commonLines)
+                out.println(line);
+        }
+
+        try (PrintWriter out = new PrintWriter(new File(dir, "PeerInfo.cfg"), "UTF-8"))
+        {
+            for (int i = 0; i < numOfPeers; i++)
+                out.println((FIRST_PEER_ID + i) + " 127.0.0.1 " + (basePort + i) + " " + (i < numOfSeeders ? 1 : 0));
+        }
+
+        File seed = new File(dir, "seed.dat");
+        if (seed.length() != fileSize)
+            writeRandomFile(seed, fileSize);
+
+        Files.deleteIfExists(new File(dir, "TheFile.dat.sha256").toPath()); // generated again by the seeders
+        for (int i = 0; i < numOfPeers; i++)
+        {
+            int peerId = FIRST_PEER_ID + i;
+            File peerDir = new File(dir, "peer_" + peerId);
+            if (!peerDir.exists() && !peerDir.mkdir())
+                throw new IOException("Can't create " + peerDir);
+
+            File file = new File(peerDir, "TheFile.dat");
+            if (file.isDirectory()) // the files of a previous multi-file run
+                for (File part : file.listFiles())
+                    Files.deleteIfExists(part.toPath());
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(new File(peerDir, "TheFile.dat.journal").toPath());
+            Files.deleteIfExists(new File(dir, "log_peer_" + peerId + ".log").toPath());
+            if (i < numOfSeeders)
+                splitSeed(seed, peerDir);
+        }
+    }
+
+    /**
+     * Size of a file of the content, the last file gets the remainder
+     * @param f index of the file
+     * @return size in bytes
+     */
+    private long getPartSize(int f)
+    {
+        long size = fileSize / numOfFiles;
+        return (f == numOfFiles - 1) ? fileSize - size * (numOfFiles - 1) : size;
+    }
+
+    /**
+     * Files of the content of a peer, in order
+     * @param peerDir directory of the peer
+     * @return TheFile.dat, or the files in the directory TheFile.dat
+     */
+    private List<File> getContentFiles(File peerDir)
+    {
+        List<File> files = new ArrayList<>();
+        if (numOfFiles == 1)
+            files.add(new File(peerDir, "TheFile.dat"));
+        else
+            for (int f = 0; f < numOfFiles; f++)
+                files.add(new File(peerDir, "TheFile.dat/part" + f + ".dat"));
+        return files;
+    }
+
+    /**
+     * Copy the seed into the files of the content of a seeder
+     * @param seed the seed file
+     * @param peerDir directory of the seeder
+     * @throws IOException
+     */
+    private void splitSeed(File seed, File peerDir) throws IOException
+    {
+        List<File> files = getContentFiles(peerDir);
+        try (FileChannel in = FileChannel.open(seed.toPath(), StandardOpenOption.READ))
+        {
+            long position = 0;
+            for (int f = 0; f < files.size(); f++)
+            {
+                File file = files.get(f);
+                if (!file.getParentFile().exists() && !file.getParentFile().mkdirs())
+                    throw new IOException("Can't create " + file.getParentFile());
+
+                try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE))
+                {
+                    long size = getPartSize(f);
+                    for (long n = 0; n < size; )
+                        n += in.transferTo(position + n, size - n, out);
+                    position += size;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run all peers in this JVM, each peer is started once the previous ones listen
+     * @return false if the swarm timed out
+     */
+    private boolean runInProcess() throws IOException, InterruptedException
+    {
+        Config config = Config.read(new File(dir, "Common.cfg").getPath());
+        Threads.setMode(config.ThreadMode);
+        List<PeerInfo> peerList = peerProcess.readPeerCfg(new File(dir, "PeerInfo.cfg").getPath());
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        long cpuStart = getProcessCpuNanos();
+        startTime = LocalDateTime.now();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSec);
+
+        List<Thread> runners = new ArrayList<>(numOfPeers);
+        for (PeerInfo p : peerList)
+        {
+            Peer peer = new Peer(p.getPeerId(), peerList, config, dir);
+            Thread runner = new Thread(() -> {
+                try
+                {
+                    peer.start();
+                } catch (IOException | InterruptedException e)
+                {
+                    e.printStackTrace();
+                }
+            }, "Peer-" + p.getPeerId());
+            runner.start();
+            runners.add(runner);
+
+            if (!peer.awaitListening(remainingMs(deadline)))
+            {
+                timedOut = true;
+                break;
+            }
+        }
+
+        for (Thread runner : runners)
+        {
+            runner.join(Math.max(1, remainingMs(deadline)));
+            if (runner.isAlive()) timedOut = true;
+        }
+
+        elapsedMs = (System.nanoTime() - start) / 1000000;
+        cpuMs = (getProcessCpuNanos() - cpuStart) / 1000000;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        long gcCount = 0;
+        long gcMs = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMs += Math.max(0, gc.getCollectionTime());
+        }
+        System.out.println("Peak heap: " + peakHeap / (1024 * 1024) + " MB, GC: " + gcCount + " collections, "
+                + gcMs + " ms");
+        return !timedOut;
+    }
+
+    /**
+     * Run each peer as a java process with the classpath of this JVM, its output goes to out_[peerId].txt. Each peer is
+     * started once the previous one listens. CPU time and resident memory are sampled every 100 ms.
+     * @return false if the swarm timed out
+     */
+    private boolean runProcesses() throws IOException, InterruptedException
+    {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        StringBuilder classpath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+        {
+            if (classpath.length() > 0) classpath.append(File.pathSeparator);
+            classpath.append(new File(entry).getAbsolutePath());
+        }
+
+        startTime = LocalDateTime.now();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSec);
+
+        List<Process> processes = new ArrayList<>(numOfPeers);
+        for (int i = 0; i < numOfPeers && !timedOut; i++)
+        {
+            int peerId = FIRST_PEER_ID + i;
+            Process process = new ProcessBuilder(java, "-cp", classpath.toString(), "peerProcess",
+                    String.valueOf(peerId)).directory(dir).redirectErrorStream(true).start();
+            processes.add(process);
+
+            CountDownLatch listening = new CountDownLatch(1);
+            Threads.start(() -> copyOutput(process.getInputStream(), new File(dir, "out_" + peerId + ".txt"),
+                    listening), "Output-" + peerId);
+            if (!listening.await(remainingMs(deadline), TimeUnit.MILLISECONDS))
+                timedOut = true;
+        }
+
+        long[] cpuNanos = new long[processes.size()];
+        long[] peakRssKb = new long[processes.size()];
+        boolean alive = true;
+        while (alive)
+        {
+            alive = false;
+            for (int i = 0; i < processes.size(); i++)
+            {
+                Process process = processes.get(i);
+                if (!process.isAlive()) continue;
+                alive = true;
+
+                long cpu = process.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+                cpuNanos[i] = Math.max(cpuNanos[i], cpu);
+                peakRssKb[i] = Math.max(peakRssKb[i], getPeakRssKb(process.pid()));
+            }
+
+            if (alive && System.nanoTime() > deadline)
+            {
+                timedOut = true;
+                for (Process process : processes)
+                    process.destroyForcibly();
+                break;
+            }
+            if (alive) Thread.sleep(100);
+        }
+        for (Process process : processes)
+            process.waitFor();
+
+        elapsedMs = (System.nanoTime() - start) / 1000000;
+        cpuMs = Arrays.stream(cpuNanos).sum() / 1000000;
+        System.out.println("Peak RSS: " + Arrays.stream(peakRssKb).sum() / 1024 + " MB in total, "
+                + Arrays.stream(peakRssKb).max().orElse(0) / 1024 + " MB for the largest peer");
+        return !timedOut;
+    }
+
+    /**
+     * Print the time to complete of each peer and the totals, and check the downloaded files
+     * @return true if every peer has the file of the seeders
+     */
+    private boolean report() throws IOException, NoSuchAlgorithmException
+    {
+        byte[] expected = sha256(new File(dir, "seed.dat"));
+        boolean ok = !timedOut;
+        long lastMs = 0;
+
+        for (int i = 0; i < numOfPeers; i++)
+        {
+            int peerId = FIRST_PEER_ID + i;
+            if (i < numOfSeeders)
+            {
+                System.out.println("Peer " + peerId + ": seeder");
+                continue;
+            }
+
+            long completeMs = getCompletionMs(peerId);
+            List<File> files = getContentFiles(new File(dir, "peer_" + peerId));
+            long size = 0;
+            for (File file : files)
+                size += file.length();
+            boolean same = size == fileSize && Arrays.equals(expected, sha256(files));
+            ok &= same && completeMs >= 0;
+            lastMs = Math.max(lastMs, completeMs);
+
+            System.out.println("Peer " + peerId + ": " + (completeMs >= 0 ? "complete in " + completeMs + " ms"
+                    : "not complete") + ", file " + (same ? "ok" : "MISMATCH"));
+        }
+
+        if (timedOut)
+            System.out.println("Timed out after " + timeoutSec + " s");
+        System.out.println("Last completion: " + lastMs + " ms, all peers exited: " + elapsedMs + " ms");
+        if (lastMs > 0)
+            System.out.printf("Aggregate download throughput: %.1f MB/s%n",
+                    (double) (numOfPeers - numOfSeeders) * fileSize / (1024 * 1024) / (lastMs / 1000.0));
+        System.out.printf("CPU time: %d ms, %.2f cores on average%n", cpuMs, cpuMs / (double) Math.max(1, elapsedMs));
+        return ok;
+    }
+
+    /**
+     * Time between the start of the swarm and the line of the log saying that the peer has the complete file
+     * @param peerId peer ID
+     * @return milliseconds, -1 if not found
+     */
+    private long getCompletionMs(int peerId) throws IOException
+    {
+        File log = new File(dir, "log_peer_" + peerId + ".log");
+        if (!log.exists()) return -1;
+
+        for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8))
+            if (line.endsWith("has downloaded the complete file"))
+            {
+                LocalDateTime time = LocalDateTime.parse(line.substring(1, line.indexOf(']')));
+                return Duration.between(startTime, time).toMillis();
+            }
+        return -1;
+    }
+
+    /**
+     * Copy the output of a peer process to a file
+     * @param in output of the process
+     * @param file destination
+     * @param listening counted down once the peer waits for clients
+     */
+    private static void copyOutput(InputStream in, File file, CountDownLatch listening)
+    {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(file, "UTF-8"))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                out.println(line);
+                if (line.startsWith("Waiting for clients at"))
+                    listening.countDown();
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        listening.countDown(); // exited
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException
+    {
+        Random random = new Random(size);
+        byte[] buffer = new byte[1 << 20];
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            for (long written = 0; written < size; written += buffer.length)
+            {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    private static byte[] sha256(File file) throws IOException, NoSuchAlgorithmException
+    {
+        return sha256(Arrays.asList(file));
+    }
+
+    /**
+     * Digest of the concatenation of files
+     * @param files the files, in order
+     * @return SHA-256
+     */
+    private static byte[] sha256(List<File> files) throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[1 << 20];
+        for (File file : files)
+        {
+            if (!file.exists()) continue;
+            try (InputStream in = new FileInputStream(file))
+            {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    md.update(buffer, 0, n);
+            }
+        }
+        return md.digest();
+    }
+
+    private static long getProcessCpuNanos()
+    {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return 0;
+    }
+
+    /**
+     * Peak resident set size of a process, Linux only
+     * @param pid process ID
+     * @return VmHWM in KB, 0 if unknown
+     */
+    private static long getPeakRssKb(long pid)
+    {
+        try
+        {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status")))
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        } catch (IOException | NumberFormatException e)
+        {
+            // not Linux, or the process has exited
+        }
+        return 0;
+    }
+
+    private static long remainingMs(long deadline)
+    {
+        return Math.max(0, (deadline - System.nanoTime()) / 1000000);
+    }
+}
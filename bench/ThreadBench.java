@@ -0,0 +1,123 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Thread and memory footprint of the thread engine with platform or virtual threads. Each simulated neighbor has a
+ * loopback connection with a reader blocked on the socket, like PeerThread, and a task blocked on its queue, like
+ * PeerSeed. Both are created by Threads, in the mode given on the command line.
+ *
+ * Usage: java ThreadBench platform|virtual [numOfNeighbors]
+ */
+public class ThreadBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        Threads.setMode((args.length > 0) ? args[0] : Config.THREADS_PLATFORM);
+        int numOfNeighbors = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+        long baseRss = getRssKb();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        List<SocketChannel> remotes = new ArrayList<>(numOfNeighbors);
+        List<BlockingQueue<Integer>> queues = new ArrayList<>(numOfNeighbors);
+        List<Thread> threads = new ArrayList<>(2 * numOfNeighbors);
+        CountDownLatch blocked = new CountDownLatch(2 * numOfNeighbors);
+        CountDownLatch done = new CountDownLatch(2 * numOfNeighbors);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numOfNeighbors; i++)
+        {
+            remotes.add(SocketChannel.open(server.getLocalAddress()));
+            Socket socket = server.accept().socket();
+
+            BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+
+            threads.add(Threads.start(() -> {
+                try
+                {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    blocked.countDown();
+                    in.readInt();
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }, "PeerThread-" + i));
+
+            threads.add(Threads.start(() -> {
+                try
+                {
+                    blocked.countDown();
+                    queue.take();
+                } catch (InterruptedException e)
+                {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }, "PeerSeed-" + i));
+        }
+        blocked.await();
+        Thread.sleep(200); // let the readers reach the blocking read
+        long startMs = (System.nanoTime() - start) / 1000000;
+
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long heapKb = (rt.totalMemory() - rt.freeMemory()) / 1024;
+        int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+        long rssKb = getRssKb() - baseRss;
+
+        // wake every neighbor up
+        start = System.nanoTime();
+        for (int i = 0; i < numOfNeighbors; i++)
+        {
+            remotes.get(i).write(ByteBuffer.allocate(4));
+            queues.get(i).put(i);
+        }
+        done.await();
+        long wakeMs = (System.nanoTime() - start) / 1000000;
+
+        for (Thread t : threads) t.join();
+        for (SocketChannel c : remotes) c.close();
+        server.close();
+
+        System.out.println("Threads: " + (Threads.isVirtual() ? "virtual" : "platform") + ", neighbors: "
+                + numOfNeighbors + ", tasks: " + threads.size());
+        System.out.println("Start: " + startMs + " ms, wake up: " + wakeMs + " ms");
+        System.out.println("New platform threads: " + platformThreads);
+        System.out.println("Heap after GC: " + heapKb + " KB, RSS increase: " + rssKb + " KB");
+    }
+
+    /**
+     * Resident set size of this process, Linux only
+     * @return RSS in KB, 0 if unknown
+     */
+    private static long getRssKb()
+    {
+        try
+        {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        } catch (IOException | NumberFormatException e)
+        {
+            // not Linux
+        }
+        return 0;
+    }
+}
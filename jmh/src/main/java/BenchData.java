@@ -0,0 +1,23 @@
+import java.util.Random;
+
+/**
+ * Random inputs of the benchmarks
+ */
+public class BenchData
+{
+    /**
+     * Make a set with each piece present with a probability
+     * @param numOfPieces number of pieces
+     * @param fill probability of each piece
+     * @param r random source
+     * @return new set
+     */
+    static PieceBitSet randomBitSet(int numOfPieces, double fill, Random r)
+    {
+        PieceBitSet bs = new PieceBitSet(numOfPieces);
+        for (int i = 0; i < numOfPieces; i++)
+            if (r.nextDouble() < fill)
+                bs.set(i);
+        return bs;
+    }
+}
@@ -0,0 +1,56 @@
+import mmt.bench.BitfieldBenchmark;
+
+import java.util.Random;
+
+/**
+ * Operations of BitfieldBenchmark on the peer's classes
+ */
+public class BitfieldOps implements BitfieldBenchmark.Ops
+{
+    private PieceBitSet mine;
+    private PieceBitSet neighbor;
+    private AtomicPieceBitSet atomic;
+    private byte[] payload;
+
+    @Override
+    public void setup(int numOfPieces, double fill)
+    {
+        Random r = new Random(42);
+        mine = BenchData.randomBitSet(numOfPieces, fill, r);
+        neighbor = BenchData.randomBitSet(numOfPieces, fill, r);
+        neighbor.and(mine); // the neighbor has nothing I lack, so the whole set is scanned
+        atomic = new AtomicPieceBitSet(numOfPieces);
+        atomic.or(mine);
+        payload = mine.toByteArray();
+    }
+
+    @Override
+    public Object toByteArray()
+    {
+        return mine.toByteArray();
+    }
+
+    @Override
+    public Object fromByteArray()
+    {
+        return PieceBitSet.fromByteArray(payload, mine.size());
+    }
+
+    @Override
+    public int cardinality()
+    {
+        return mine.cardinality();
+    }
+
+    @Override
+    public boolean hasAnyNotIn()
+    {
+        return neighbor.hasAnyNotIn(mine);
+    }
+
+    @Override
+    public Object snapshot()
+    {
+        return atomic.snapshot();
+    }
+}
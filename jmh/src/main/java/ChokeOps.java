@@ -0,0 +1,28 @@
+import mmt.bench.ChokeBenchmark;
+
+import java.util.Random;
+
+/**
+ * Operations of ChokeBenchmark on the peer's classes
+ */
+public class ChokeOps implements ChokeBenchmark.Ops
+{
+    private final Random random = new Random(42);
+    private double[] rate;
+    private int k;
+
+    @Override
+    public void setup(int numOfNeighbors, int numOfPreferred)
+    {
+        rate = new double[numOfNeighbors];
+        for (int i = 0; i < numOfNeighbors; i++)
+            rate[i] = random.nextDouble() * 1e7;
+        k = numOfPreferred;
+    }
+
+    @Override
+    public Object findKHighestRate()
+    {
+        return ChokeThread.findKHighestRate(rate, k, random);
+    }
+}
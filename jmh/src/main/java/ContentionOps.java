@@ -0,0 +1,69 @@
+import mmt.bench.ContentionBenchmark;
+
+import java.util.Random;
+
+/**
+ * Operations of ContentionBenchmark on the peer's classes
+ */
+public class ContentionOps implements ContentionBenchmark.Ops
+{
+    private AtomicPieceBitSet atomic;
+    private PieceBitSet locked;
+    private PieceBitSet neighbor;
+
+    @Override
+    public void setup(int numOfPieces)
+    {
+        Random r = new Random(42);
+        PieceBitSet half = BenchData.randomBitSet(numOfPieces, 0.5, r);
+        atomic = new AtomicPieceBitSet(numOfPieces);
+        atomic.or(half);
+        locked = half.copy();
+        neighbor = half.copy(); // nothing interesting, the whole set is compared
+    }
+
+    /**
+     * Claim a piece and give it back, a single CAS each
+     */
+    @Override
+    public boolean claimAtomic(int idx)
+    {
+        if (!atomic.trySet(idx))
+            return false;
+        atomic.clear(idx);
+        return true;
+    }
+
+    @Override
+    public boolean claimLocked(int idx)
+    {
+        synchronized (locked)
+        {
+            if (locked.get(idx))
+                return false;
+            locked.set(idx);
+        }
+        synchronized (locked)
+        {
+            locked.clear(idx);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean checkInterestAtomic()
+    {
+        return atomic.hasAnyNotIn(neighbor);
+    }
+
+    @Override
+    public boolean checkInterestLocked()
+    {
+        PieceBitSet copy;
+        synchronized (locked)
+        {
+            copy = locked.copy();
+        }
+        return copy.hasAnyNotIn(neighbor);
+    }
+}
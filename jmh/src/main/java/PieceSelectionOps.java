@@ -0,0 +1,56 @@
+import mmt.bench.PieceSelectionBenchmark;
+
+import java.util.Random;
+
+/**
+ * Operations of PieceSelectionBenchmark on the peer's classes
+ */
+public class PieceSelectionOps implements PieceSelectionBenchmark.Ops
+{
+    private final Random random = new Random(42);
+    private PiecePicker picker;
+    private PieceBitSet have;
+    private AtomicPieceBitSet downloading;
+    private PieceBitSet neighbor;
+
+    @Override
+    public void setup(int numOfPieces, int numOfNeighbors, double fill)
+    {
+        have = BenchData.randomBitSet(numOfPieces, fill, random);
+        downloading = new AtomicPieceBitSet(numOfPieces);
+        picker = new PiecePicker(numOfPieces, numOfNeighbors, have);
+
+        for (int i = 0; i < numOfNeighbors; i++)
+        {
+            PieceBitSet bs = BenchData.randomBitSet(numOfPieces, 0.5, random);
+            picker.incAvailability(bs);
+            if (i == 0) neighbor = bs;
+        }
+    }
+
+    @Override
+    public int pickRarest()
+    {
+        return picker.pickRarest(neighbor);
+    }
+
+    @Override
+    public int pickRandom()
+    {
+        PieceBitSet missing = neighbor.copy().andNot(have).andNot(downloading.snapshot());
+        int numOfCandidates = missing.cardinality();
+        return (numOfCandidates == 0) ? -1 : missing.nthSetBit(random.nextInt(numOfCandidates));
+    }
+
+    @Override
+    public int claimAndRelease()
+    {
+        int idx = picker.takeRarest(neighbor);
+        if (idx >= 0 && downloading.trySet(idx))
+        {
+            downloading.clear(idx);
+            picker.setWanted(idx, true);
+        }
+        return idx;
+    }
+}
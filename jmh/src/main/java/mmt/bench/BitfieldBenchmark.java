@@ -0,0 +1,88 @@
+package mmt.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bitfield operations of the protocol: building the BITFIELD msg, parsing it, counting pieces, checking interest and
+ * copying the bitfield of the peer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark
+{
+    public interface Ops
+    {
+        void setup(int numOfPieces, double fill);
+
+        Object toByteArray();
+
+        Object fromByteArray();
+
+        int cardinality();
+
+        boolean hasAnyNotIn();
+
+        Object snapshot();
+    }
+
+    @Param({"1024", "65536", "1048576"})
+    public int numOfPieces;
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double fill;
+
+    private Ops ops;
+
+    @Setup
+    public void setup()
+    {
+        ops = Fixtures.load("BitfieldOps", Ops.class);
+        ops.setup(numOfPieces, fill);
+    }
+
+    @Benchmark
+    public Object makeBitfieldMsg()
+    {
+        return ops.toByteArray();
+    }
+
+    @Benchmark
+    public Object parseBitfieldMsg()
+    {
+        return ops.fromByteArray();
+    }
+
+    @Benchmark
+    public int countPieces()
+    {
+        return ops.cardinality();
+    }
+
+    @Benchmark
+    public boolean checkInterest()
+    {
+        return ops.hasAnyNotIn();
+    }
+
+    @Benchmark
+    public Object snapshotBitfield()
+    {
+        return ops.snapshot();
+    }
+}
@@ -0,0 +1,55 @@
+package mmt.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selecting the preferred neighbors by rate, ChokeThread.findKHighestRate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChokeBenchmark
+{
+    public interface Ops
+    {
+        void setup(int numOfNeighbors, int numOfPreferred);
+
+        Object findKHighestRate();
+    }
+
+    @Param({"8", "64", "1024"})
+    public int numOfNeighbors;
+
+    @Param({"2", "8"})
+    public int numOfPreferred;
+
+    private Ops ops;
+
+    @Setup
+    public void setup()
+    {
+        ops = Fixtures.load("ChokeOps", Ops.class);
+        ops.setup(numOfNeighbors, numOfPreferred);
+    }
+
+    @Benchmark
+    public Object findKHighestRate()
+    {
+        return ops.findKHighestRate();
+    }
+}
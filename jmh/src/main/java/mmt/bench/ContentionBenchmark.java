@@ -0,0 +1,88 @@
+package mmt.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads claiming pieces and checking interest at the same time, on the piece state shared by all connections: the
+ * CAS-based AtomicPieceBitSet against a PieceBitSet guarded by a monitor, as the bitfield lock used to be
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark
+{
+    public interface Ops
+    {
+        void setup(int numOfPieces);
+
+        boolean claimAtomic(int idx);
+
+        boolean claimLocked(int idx);
+
+        boolean checkInterestAtomic();
+
+        boolean checkInterestLocked();
+    }
+
+    @Param({"1024", "65536", "1048576"})
+    public int numOfPieces;
+
+    private Ops ops;
+
+    @Setup
+    public void setup()
+    {
+        ops = Fixtures.load("ContentionOps", Ops.class);
+        ops.setup(numOfPieces);
+    }
+
+    @Benchmark
+    @Group("atomic")
+    @GroupThreads(3)
+    public boolean atomicClaim()
+    {
+        return ops.claimAtomic(ThreadLocalRandom.current().nextInt(numOfPieces));
+    }
+
+    @Benchmark
+    @Group("atomic")
+    @GroupThreads(1)
+    public boolean atomicInterest()
+    {
+        return ops.checkInterestAtomic();
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(3)
+    public boolean lockedClaim()
+    {
+        return ops.claimLocked(ThreadLocalRandom.current().nextInt(numOfPieces));
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public boolean lockedInterest()
+    {
+        return ops.checkInterestLocked();
+    }
+}
@@ -0,0 +1,31 @@
+package mmt.bench;
+
+/**
+ * The peer is written in the default package, which a benchmark can't import, and JMH refuses benchmarks in the
+ * default package. So each benchmark declares the operations it measures as an interface, implemented by a class in
+ * the default package next to the peer's classes, and loads it by name. The call through the interface has a single
+ * implementation and is inlined by the JIT.
+ */
+final class Fixtures
+{
+    private Fixtures()
+    {
+    }
+
+    /**
+     * Create the implementation of a benchmark's operations
+     * @param className name of the class in the default package
+     * @param type interface of the operations
+     * @return new instance
+     */
+    static <T> T load(String className, Class<T> type)
+    {
+        try
+        {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Cannot load " + className, e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package mmt.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selecting the next piece to request from a neighbor, as Peer.selectNewBlockFromNeighbor does: rarest first with
+ * PiecePicker, or a random missing piece. fill is the fraction of pieces I have, each neighbor has half of the pieces
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PieceSelectionBenchmark
+{
+    public interface Ops
+    {
+        void setup(int numOfPieces, int numOfNeighbors, double fill);
+
+        int pickRarest();
+
+        int pickRandom();
+
+        int claimAndRelease();
+    }
+
+    @Param({"1024", "65536", "1048576"})
+    public int numOfPieces;
+
+    @Param({"8", "64"})
+    public int numOfNeighbors;
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double fill;
+
+    private Ops ops;
+
+    @Setup
+    public void setup()
+    {
+        ops = Fixtures.load("PieceSelectionOps", Ops.class);
+        ops.setup(numOfPieces, numOfNeighbors, fill);
+    }
+
+    @Benchmark
+    public int rarest()
+    {
+        return ops.pickRarest();
+    }
+
+    @Benchmark
+    public int random()
+    {
+        return ops.pickRandom();
+    }
+
+    /**
+     * Rarest piece, claimed with a CAS and given back, as a request that times out
+     */
+    @Benchmark
+    public int claimAndRelease()
+    {
+        return ops.claimAndRelease();
+    }
+}
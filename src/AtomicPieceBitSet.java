@@ -0,0 +1,202 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe set of piece indexes packed into 64-bit words. Each bit is changed with a CAS on its word, so that
+ * claiming a piece is a single successful CAS, and a snapshot is copied a word at a time without locking. The number of
+ * pieces is counted by the thread whose CAS succeeds, and an optional latch is counted down once the set becomes full.
+ */
+public class AtomicPieceBitSet
+{
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final CountDownLatch fullLatch;
+
+    AtomicPieceBitSet(int size)
+    {
+        this(size, null);
+    }
+
+    /**
+     * @param size number of pieces
+     * @param fullLatch counted down when the set becomes full, may be null
+     */
+    AtomicPieceBitSet(int size, CountDownLatch fullLatch)
+    {
+        this.size = size;
+        this.fullLatch = fullLatch;
+        words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean get(int idx)
+    {
+        return (words.get(idx >>> 6) & (1L << idx)) != 0;
+    }
+
+    /**
+     * Add a piece if it is not in the set yet
+     * @param idx piece index
+     * @return true if added by this call, false if it was already in the set
+     */
+    public boolean trySet(int idx)
+    {
+        int w = idx >>> 6;
+        long mask = 1L << idx;
+        while (true)
+        {
+            long word = words.get(w);
+            if ((word & mask) != 0)
+                return false;
+            if (words.compareAndSet(w, word, word | mask))
+            {
+                added(1);
+                return true;
+            }
+        }
+    }
+
+    public void set(int idx)
+    {
+        trySet(idx);
+    }
+
+    /**
+     * Remove a piece
+     * @param idx piece index
+     * @return true if removed by this call, false if it was not in the set
+     */
+    public boolean clear(int idx)
+    {
+        int w = idx >>> 6;
+        long mask = 1L << idx;
+        while (true)
+        {
+            long word = words.get(w);
+            if ((word & mask) == 0)
+                return false;
+            if (words.compareAndSet(w, word, word & ~mask))
+            {
+                count.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Set all pieces
+     */
+    public void setAll()
+    {
+        for (int i = 0; i < size; i++)
+            set(i);
+    }
+
+    /**
+     * Add all pieces of another set
+     * @param other the other set, of the same size
+     * @return the pieces that were not in this set before
+     */
+    public PieceBitSet or(PieceBitSet other)
+    {
+        long[] newWords = new long[words.length()];
+        int cnt = 0;
+        for (int w = 0; w < newWords.length; w++)
+        {
+            long o = other.getWord(w);
+            while (true)
+            {
+                long word = words.get(w);
+                if ((o & ~word) == 0 || words.compareAndSet(w, word, word | o))
+                {
+                    newWords[w] = o & ~word;
+                    cnt += Long.bitCount(newWords[w]);
+                    break;
+                }
+            }
+        }
+
+        added(cnt);
+        return new PieceBitSet(size, newWords);
+    }
+
+    /**
+     * Number of pieces in the set, may be stale if the set is being changed
+     * @return number of set bits
+     */
+    public int cardinality()
+    {
+        return count.get();
+    }
+
+    public boolean isFull()
+    {
+        return count.get() == size;
+    }
+
+    /**
+     * Check if this set has a piece that another set lacks, without copying this set
+     * @param other the other set, of the same size
+     * @return true if (this AND NOT other) is not empty
+     */
+    public boolean hasAnyNotIn(PieceBitSet other)
+    {
+        for (int w = 0; w < words.length(); w++)
+            if ((words.get(w) & ~other.getWord(w)) != 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Check if every piece is in this set or in another one. Each word of this set is read before the word of the other
+     * set, so a piece that is added to the other set before being removed from this one is seen in one of them
+     * @param other the other set, of the same size
+     * @return true if (this OR other) is full
+     */
+    public boolean isFullWith(AtomicPieceBitSet other)
+    {
+        for (int w = 0; w < words.length(); w++)
+        {
+            long word = words.get(w);
+            word |= other.words.get(w);
+            long expected = (w == words.length() - 1 && (size & 63) != 0) ? (1L << size) - 1 : -1L;
+            if ((word & expected) != expected)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the set, each word is read atomically
+     * @return a copy
+     */
+    public PieceBitSet snapshot()
+    {
+        long[] copy = new long[words.length()];
+        for (int w = 0; w < copy.length; w++)
+            copy[w] = words.get(w);
+        return new PieceBitSet(size, copy);
+    }
+
+    /**
+     * Count added pieces, the thread that makes the set full counts down the latch
+     * @param n number of pieces added by the caller
+     */
+    private void added(int n)
+    {
+        if (n > 0 && count.addAndGet(n) == size && fullLatch != null)
+            fullLatch.countDown();
+    }
+
+    @Override
+    public String toString()
+    {
+        return snapshot().toString();
+    }
+}
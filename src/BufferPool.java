@@ -0,0 +1,99 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of reusable byte arrays of the same size, used to receive PIECE payloads without allocating a new
+ * array for every message. A borrow from an empty pool allocates a new array (miss), and a release to a full pool
+ * drops the array.
+ */
+public class BufferPool
+{
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<byte[]> buffers;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+
+    BufferPool(int bufferSize, int capacity)
+    {
+        this.bufferSize = bufferSize;
+        this.capacity = Math.max(1, capacity);
+        buffers = new ArrayBlockingQueue<>(this.capacity);
+    }
+
+    /**
+     * Borrow a buffer, it must be released once its content is not used anymore
+     * @return a buffer of getBufferSize() bytes
+     */
+    public byte[] borrow()
+    {
+        byte[] buffer = buffers.poll();
+        if (buffer != null)
+        {
+            hits.increment();
+            return buffer;
+        }
+
+        misses.increment();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Give back a borrowed buffer
+     * @param buffer the buffer
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer.length != bufferSize || !buffers.offer(buffer))
+            drops.increment();
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Number of borrows served by a pooled buffer
+     * @return hits
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Number of borrows that had to allocate a new buffer
+     * @return misses
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Number of releases dropped because the pool was full
+     * @return drops
+     */
+    public long getDrops()
+    {
+        return drops.sum();
+    }
+
+    /**
+     * Number of buffers currently in the pool
+     * @return occupancy
+     */
+    public int getOccupancy()
+    {
+        return buffers.size();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+}
@@ -5,11 +5,13 @@ public class ChokeThread implements Runnable
     private final Peer thisPeer;
     private final Thread thread;
     private final OptimisticChokeThread optimisticChokeThread;
+    private final Random random = new Random();
+    private int lastRoundRobinPos = -1; // position in peerList of the neighbor given the round-robin slot last time
 
     public ChokeThread(Peer thisPeer)
     {
         this.thisPeer = thisPeer;
-        thread = new Thread(this);
+        thread = Threads.newThread(this, "ChokeThread");
         optimisticChokeThread = new OptimisticChokeThread(thisPeer);
     }
 
@@ -20,21 +22,21 @@ public class ChokeThread implements Runnable
         {
             try
             {
-                Thread.sleep(peerProcess.UnchokingInterval * 1000);
+                Thread.sleep(thisPeer.getConfig().UnchokingInterval * 1000);
 
                 // get data
-                ArrayList<Double> rate = new ArrayList<>(thisPeer.getPeerList().size() - 1);
-                ArrayList<Integer> validId = new ArrayList<>(thisPeer.getPeerList().size() - 1);
                 List<PeerInfo> peerList = thisPeer.getPeerList();
+                ArrayList<Integer> validId = new ArrayList<>(peerList.size() - 1);
+                ArrayList<Integer> validPos = new ArrayList<>(peerList.size() - 1); // position in peerList
 
-                for (PeerInfo peerInfo : peerList)
+                for (int p = 0; p < peerList.size(); p++)
                 {
-                    int id = peerInfo.getPeerId();
+                    int id = peerList.get(p).getPeerId();
                     // Not myself and is interested
                     if (id != thisPeer.getPeerId() && thisPeer.checkInterestedNeighbor(id))
                     {
-                        rate.add(thisPeer.getDownloadRate(id));
                         validId.add(id);
+                        validPos.add(p);
                     }
                     else if (id != thisPeer.getPeerId()) // choke those not interested
                     {
@@ -44,26 +46,28 @@ public class ChokeThread implements Runnable
 
                 if (validId.size() == 0) continue;
 
-                int numOfNeighborsToSelect = Math.min(peerProcess.NumOfPreferredNeighbors, validId.size());
+                int numOfNeighborsToSelect = Math.min(thisPeer.getConfig().NumOfPreferredNeighbors, validId.size());
 
-                ArrayList<Integer> highestIdx;
+                int[] highestIdx;
                 if (!thisPeer.getHasFile())
                 {
                     // get indexes of top k highest download rates
-                    highestIdx = findKHighestRate(rate, numOfNeighborsToSelect);
+                    double[] rate = new double[validId.size()];
+                    for (int i = 0; i < rate.length; i++)
+                        rate[i] = thisPeer.getDownloadRate(validId.get(i));
+                    highestIdx = findKHighestRate(rate, numOfNeighborsToSelect, random);
                 }
-                else
+                else if (thisPeer.getConfig().SeedPolicy.equals(Config.SEED_RANDOM))
                 {
                     // select random indexes
-                    Random r = new Random();
-                    highestIdx = new ArrayList<>(numOfNeighborsToSelect);
-
-                    while (highestIdx.size() < numOfNeighborsToSelect)
-                    {
-                        int idx = r.nextInt(validId.size());
-                        if (!highestIdx.contains(idx))
-                            highestIdx.add(idx);
-                    }
+                    highestIdx = selectRandom(validId.size(), numOfNeighborsToSelect);
+                }
+                else
+                {
+                    double[] rate = new double[validId.size()];
+                    for (int i = 0; i < rate.length; i++)
+                        rate[i] = thisPeer.getUploadRate(validId.get(i));
+                    highestIdx = selectByUploadRate(rate, validPos, numOfNeighborsToSelect);
                 }
 
                 // update preferred neighbor
@@ -78,10 +82,10 @@ public class ChokeThread implements Runnable
                     thisPeer.setPreferredNeighbor(validId.get(i), isPreferred[i]);
                     if (isPreferred[i])
                         logPreferred.append(", ").append(validId.get(i));
-//                    Log.println("Neighbor " + validId.get(i) + " is preferred: " + isPreferred[i]);
+//                    thisPeer.getLog().println("Neighbor " + validId.get(i) + " is preferred: " + isPreferred[i]);
                 }
 
-                Log.println("Peer "+ thisPeer.getPeerId() + " has the preferred neighbors " + logPreferred.substring(2));
+                thisPeer.getLog().println("Peer "+ thisPeer.getPeerId() + " has the preferred neighbors " + logPreferred.substring(2));
 
             } catch (InterruptedException e)
             {
@@ -92,94 +96,127 @@ public class ChokeThread implements Runnable
     }
 
     /**
-     * Find indexes of K highest rates
-     * @param rate array of rates
+     * Select k random indexes
+     * @param n number of candidates
      * @param k K
-     * @return list of indexes of K highest rates
+     * @return k distinct indexes
      */
-    private ArrayList<Integer> findKHighestRate(ArrayList<Double> rate, int k)
+    private int[] selectRandom(int n, int k)
     {
-        Double[] arr = rate.toArray(new Double[0]);
-
-        ArrayList<Integer> result = new ArrayList<>(k);
-        int n = arr.length;
-        // Build index array
-
-        int[] arr_index = new int[n];
+        int[] idx = new int[n];
         for (int i = 0; i < n; i++)
+            idx[i] = i;
+
+        // partial Fisher-Yates shuffle
+        for (int i = 0; i < k; i++)
         {
-            arr_index[i] = i;
+            int j = i + random.nextInt(n - i);
+            int tmp = idx[i];
+            idx[i] = idx[j];
+            idx[j] = tmp;
         }
+        return Arrays.copyOf(idx, k);
+    }
 
-        if (n > k)
-        {
-            // Build heap (rearrange array)
-            for (int i = n / 2 - 1; i >= 0; i--)
-                heapify(arr, arr_index, n, i);
+    /**
+     * Seeding policy: the k - 1 neighbors I upload to the fastest keep their slots, and the last slot rotates
+     * round-robin over the other interested neighbors in the order of PeerInfo.cfg, so that each of them gets to show
+     * its rate
+     * @param rate upload rate to each candidate
+     * @param pos position of each candidate in the peer list, ascending
+     * @param k K
+     * @return indexes of the selected candidates
+     */
+    private int[] selectByUploadRate(double[] rate, List<Integer> pos, int k)
+    {
+        if (k <= 0) return new int[0];
 
-            // One by one extract an element from heap
-            for (int i = n - 1; i >= n - k; i--)
-            {
-                //            result.add(arr[0]);
-                result.add(arr_index[0]);
-                // Move current root to end
-                Double temp = arr[0];
-                arr[0] = arr[i];
-                arr[i] = temp;
-                int temp_index = arr_index[0];
-                arr_index[0] = arr_index[i];
-                arr_index[i] = temp_index;
-
-                // call max heapify on the reduced heap
-                heapify(arr, arr_index, i, 0);
-            }
-        } else
+        int[] result = Arrays.copyOf(findKHighestRate(rate, k - 1, random), k);
+
+        boolean[] taken = new boolean[rate.length];
+        for (int i = 0; i < k - 1; i++)
+            taken[result[i]] = true;
+
+        // the first candidate after the previous round-robin one, wrapping around
+        int next = -1;
+        for (int i = 0; i < rate.length; i++)
         {
-            for (int i = n - 1; i >= 0; i--)
-            {
-                result.add(arr_index[i]);
-            }
+            if (taken[i]) continue;
+            if (next < 0 || (pos.get(next) <= lastRoundRobinPos && pos.get(i) > lastRoundRobinPos))
+                next = i;
         }
 
+        result[k - 1] = next;
+        lastRoundRobinPos = pos.get(next);
         return result;
     }
 
     /**
-     * heapify a subtree rooted with node i which is an index in arr[]
-     * @param arr heap
-     * @param arr_index
-     * @param n size of heap
-     * @param i root node index
+     * Find indexes of K highest rates with a min-heap of K indexes, ties are broken by starting at a random index
+     * @param rate array of rates
+     * @param k K
+     * @param random source of the random start
+     * @return indexes of K highest rates, in no particular order
      */
-    private static void heapify(Double[] arr, int[] arr_index, int n, int i)
+    static int[] findKHighestRate(double[] rate, int k, Random random)
     {
-        int largest = i; // Initialize largest as root
-        int l = 2 * i + 1; // left = 2*i + 1
-        int r = 2 * i + 2; // right = 2*i + 2
-
-        // If left child is larger than root
-        if (l < n && arr[l] > arr[largest])
-            largest = l;
+        int n = rate.length;
+        k = Math.min(k, n);
+        if (k <= 0) return new int[0];
+
+        int[] heap = new int[k]; // heap[0] is the slowest of the fastest found so far
+        int size = 0;
+        int start = random.nextInt(n);
+        for (int j = 0; j < n; j++)
+        {
+            int i = (start + j) % n;
+            if (size < k)
+            {
+                heap[size] = i;
+                siftUp(heap, rate, size++);
+            }
+            else if (rate[i] > rate[heap[0]])
+            {
+                heap[0] = i;
+                siftDown(heap, rate, size, 0);
+            }
+        }
+        return heap;
+    }
 
-        // If right child is larger than largest so far
-        if (r < n && arr[r] > arr[largest])
-            largest = r;
+    private static void siftUp(int[] heap, double[] rate, int i)
+    {
+        while (i > 0)
+        {
+            int parent = (i - 1) / 2;
+            if (rate[heap[parent]] <= rate[heap[i]]) return;
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
 
-        // If largest is not root
-        if (largest != i)
+    private static void siftDown(int[] heap, double[] rate, int n, int i)
+    {
+        while (true)
         {
-            Double swap = arr[i];
-            arr[i] = arr[largest];
-            arr[largest] = swap;
-            int swap_index = arr_index[i];
-            arr_index[i] = arr_index[largest];
-            arr_index[largest] = swap_index;
-
-            // Recursively heapify the affected sub-tree
-            heapify(arr, arr_index, n, largest);
+            int smallest = i;
+            int l = 2 * i + 1;
+            int r = 2 * i + 2;
+            if (l < n && rate[heap[l]] < rate[heap[smallest]]) smallest = l;
+            if (r < n && rate[heap[r]] < rate[heap[smallest]]) smallest = r;
+            if (smallest == i) return;
+            swap(heap, i, smallest);
+            i = smallest;
         }
     }
 
+    private static void swap(int[] heap, int i, int j)
+    {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+
     /**
      * Start this thread and the optimisticChoke
      */
@@ -215,7 +252,7 @@ class OptimisticChokeThread implements Runnable
     public OptimisticChokeThread(Peer thisPeer)
     {
         this.thisPeer = thisPeer;
-        thread = new Thread(this);
+        thread = Threads.newThread(this, "OptimisticChokeThread");
     }
 
     @Override
@@ -226,7 +263,7 @@ class OptimisticChokeThread implements Runnable
         {
             try
             {
-                Thread.sleep(peerProcess.OptimisticUnchokingInterval * 1000);
+                Thread.sleep(thisPeer.getConfig().OptimisticUnchokingInterval * 1000);
 
                 int prevId = thisPeer.getOptimistUnchoke();
                 int neighborId = prevId;
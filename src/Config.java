@@ -0,0 +1,259 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of a peer, read from Common.cfg. Each peer has its own Config, so several peers can run in one JVM.
+ */
+public class Config
+{
+    /**
+     * A file of a content made of several files
+     */
+    public static class ContentFile
+    {
+        public final long size;
+        public final String path; // relative to the directory of the content
+
+        ContentFile(long size, String path)
+        {
+            this.size = size;
+            this.path = path;
+        }
+    }
+
+    public int NumOfPreferredNeighbors = 2;
+    public int UnchokingInterval = 5;
+    public int OptimisticUnchokingInterval = 15;
+    public String FileName = "TheFile.dat";
+    public long FileSize = 10000232;
+    public int PieceSize = 32768;
+    public String NetworkEngine = "thread";
+    public int NumOfIoThreads = 2;
+    public int NumOfTaskThreads = 4;
+    public int RequestWindow = 5;
+    public boolean ZeroCopy = true;
+    public String Storage = "mmap";
+    public int ReceiveBuffers = 16;
+    public int BlockSize = 0;
+    public int WriteBatch = 8192;
+    public int WriteLinger = 200;
+    public int HaveBatch = 20;
+    public String PiecePolicy = "rarest";
+    public int RequestTimeout = 2000;
+    public int TimeoutTick = 100;
+    public int MinRequestTimeout = 200;
+    public boolean Endgame = true;
+    public String ThreadMode = "platform";
+    public int RateWindow = 10000;
+    public String SeedPolicy = "rate";
+    public int LogFlush = 100;
+    public int MetricsPort = 0;
+    public boolean VerifyPieces = true;
+    public int VerifyThreads = 2;
+    public boolean Resume = true;
+    public int JournalSync = 1000;
+    public List<ContentFile> ContentFiles = new ArrayList<>(); // empty if the content is the single file FileName
+
+    public static final String ENGINE_THREAD = "thread";
+    public static final String ENGINE_NIO = "nio";
+    public static final String STORAGE_FILE = "file";
+    public static final String STORAGE_MMAP = "mmap";
+    public static final String POLICY_RAREST = "rarest";
+    public static final String POLICY_RANDOM = "random";
+    public static final String THREADS_PLATFORM = "platform";
+    public static final String THREADS_VIRTUAL = "virtual";
+    public static final String SEED_RATE = "rate";
+    public static final String SEED_RANDOM = "random";
+
+    /**
+     * Read a Common.cfg file, missing settings keep their default value
+     * @param path path of the file
+     * @return the settings
+     * @throws IOException
+     */
+    public static Config read(String path) throws IOException
+    {
+        Config config = new Config();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+
+        String st;
+        while ((st = reader.readLine()) != null)
+        {
+            String[] tokens = st.trim().split("\\s+");
+            if (tokens.length < 2) continue;
+
+            switch (tokens[0])
+            {
+                case "NumberOfPreferredNeighbors":
+                    config.NumOfPreferredNeighbors = Integer.parseInt(tokens[1]);
+                    break;
+                case "UnchokingInterval":
+                    config.UnchokingInterval = Integer.parseInt(tokens[1]);
+                    break;
+                case "OptimisticUnchokingInterval":
+                    config.OptimisticUnchokingInterval = Integer.parseInt(tokens[1]);
+                    break;
+                case "FileName":
+                    config.FileName = tokens[1];
+                    break;
+                case "FileSize":
+                    config.FileSize = Long.parseLong(tokens[1]);
+                    break;
+                case "PieceSize":
+                    config.PieceSize = Integer.parseInt(tokens[1]);
+                    break;
+                case "NetworkEngine": // thread or nio
+                    config.NetworkEngine = checkChoice(tokens[0], tokens[1], ENGINE_THREAD, ENGINE_NIO);
+                    break;
+                case "IoThreads":
+                    config.NumOfIoThreads = Integer.parseInt(tokens[1]);
+                    break;
+                case "TaskThreads":
+                    config.NumOfTaskThreads = Integer.parseInt(tokens[1]);
+                    break;
+                case "RequestWindow":
+                    config.RequestWindow = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "ZeroCopy": // 1 or 0
+                    config.ZeroCopy = Integer.parseInt(tokens[1]) != 0;
+                    break;
+                case "Storage": // file or mmap
+                    config.Storage = checkChoice(tokens[0], tokens[1], STORAGE_MMAP, STORAGE_FILE);
+                    break;
+                case "ReceiveBuffers":
+                    config.ReceiveBuffers = Integer.parseInt(tokens[1]);
+                    break;
+                case "BlockSize": // 0 to request whole pieces
+                    config.BlockSize = Math.max(0, Integer.parseInt(tokens[1]));
+                    break;
+                case "WriteBatch": // bytes
+                    config.WriteBatch = Integer.parseInt(tokens[1]);
+                    break;
+                case "WriteLinger": // microseconds
+                    config.WriteLinger = Integer.parseInt(tokens[1]);
+                    break;
+                case "HaveBatch": // milliseconds, 0 to announce every piece immediately
+                    config.HaveBatch = Math.max(0, Integer.parseInt(tokens[1]));
+                    break;
+                case "PiecePolicy": // rarest or random
+                    config.PiecePolicy = checkChoice(tokens[0], tokens[1], POLICY_RAREST, POLICY_RANDOM);
+                    break;
+                case "RequestTimeout": // milliseconds
+                    config.RequestTimeout = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "TimeoutTick": // milliseconds
+                    config.TimeoutTick = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "MinRequestTimeout": // milliseconds
+                    config.MinRequestTimeout = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "Endgame": // 1 or 0
+                    config.Endgame = Integer.parseInt(tokens[1]) != 0;
+                    break;
+                case "ThreadMode": // platform or virtual
+                    config.ThreadMode = checkChoice(tokens[0], tokens[1], THREADS_PLATFORM, THREADS_VIRTUAL);
+                    break;
+                case "RateWindow": // milliseconds
+                    config.RateWindow = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "SeedPolicy": // rate or random
+                    config.SeedPolicy = checkChoice(tokens[0], tokens[1], SEED_RATE, SEED_RANDOM);
+                    break;
+                case "LogFlush": // milliseconds
+                    config.LogFlush = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "MetricsPort": // 0 to disable the HTTP endpoint
+                    config.MetricsPort = Integer.parseInt(tokens[1]);
+                    break;
+                case "VerifyPieces": // 1 or 0
+                    config.VerifyPieces = Integer.parseInt(tokens[1]) != 0;
+                    break;
+                case "VerifyThreads":
+                    config.VerifyThreads = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "Resume": // 1 or 0
+                    config.Resume = Integer.parseInt(tokens[1]) != 0;
+                    break;
+                case "JournalSync": // milliseconds
+                    config.JournalSync = Math.max(1, Integer.parseInt(tokens[1]));
+                    break;
+                case "File": // size and path of a file of the content, the path may contain spaces
+                    if (tokens.length < 3) break;
+                    String file = st.trim().split("\\s+", 3)[2];
+                    config.ContentFiles.add(new ContentFile(Long.parseLong(tokens[1]), file));
+                    break;
+            }
+        }
+
+        reader.close();
+
+        // the content is the concatenation of its files
+        if (!config.ContentFiles.isEmpty())
+        {
+            config.FileSize = 0;
+            for (ContentFile f : config.ContentFiles)
+                config.FileSize += f.size;
+        }
+        return config;
+    }
+
+    /**
+     * Check the value of a setting that takes one of a few words
+     * @param key name of the setting
+     * @param value value read
+     * @param choices accepted values
+     * @return the value
+     * @throws IllegalArgumentException if the value is not accepted
+     */
+    private static String checkChoice(String key, String value, String... choices)
+    {
+        for (String choice : choices)
+            if (choice.equals(value))
+                return value;
+        throw new IllegalArgumentException("Unknown " + key + " " + value + ", expected one of "
+                + String.join(", ", choices));
+    }
+
+    /**
+     * Print out the settings
+     */
+    public void print()
+    {
+        System.out.println("Number of Preferred Neighbors:" + NumOfPreferredNeighbors);
+        System.out.println("Unchoking Interval:" + UnchokingInterval);
+        System.out.println("Optimistic Unchoking Interval:" + OptimisticUnchokingInterval);
+        System.out.println("File Name:" + FileName);
+        System.out.println("File Size:" + FileSize);
+        System.out.println("Piece Size:" + PieceSize);
+        System.out.println("Network Engine:" + NetworkEngine);
+        System.out.println("I/O Threads:" + NumOfIoThreads);
+        System.out.println("Task Threads:" + NumOfTaskThreads);
+        System.out.println("Request Window:" + RequestWindow);
+        System.out.println("Zero Copy:" + ZeroCopy);
+        System.out.println("Storage:" + Storage);
+        System.out.println("Receive Buffers:" + ReceiveBuffers);
+        System.out.println("Block Size:" + BlockSize);
+        System.out.println("Write Batch:" + WriteBatch);
+        System.out.println("Write Linger:" + WriteLinger);
+        System.out.println("Have Batch:" + HaveBatch);
+        System.out.println("Piece Policy:" + PiecePolicy);
+        System.out.println("Request Timeout:" + RequestTimeout);
+        System.out.println("Timeout Tick:" + TimeoutTick);
+        System.out.println("Min Request Timeout:" + MinRequestTimeout);
+        System.out.println("Endgame:" + Endgame);
+        System.out.println("Thread Mode:" + ThreadMode);
+        System.out.println("Rate Window:" + RateWindow);
+        System.out.println("Seed Policy:" + SeedPolicy);
+        System.out.println("Log Flush:" + LogFlush);
+        System.out.println("Metrics Port:" + MetricsPort);
+        System.out.println("Verify Pieces:" + VerifyPieces);
+        System.out.println("Verify Threads:" + VerifyThreads);
+        System.out.println("Resume:" + Resume);
+        System.out.println("Journal Sync:" + JournalSync);
+        for (ContentFile f : ContentFiles)
+            System.out.println("File:" + f.size + " " + f.path);
+    }
+}
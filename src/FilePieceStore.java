@@ -0,0 +1,63 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * PieceStore doing positional reads and writes on the FileChannel of a RandomAccessFile
+ */
+public class FilePieceStore implements PieceStore
+{
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    FilePieceStore(String path) throws IOException
+    {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        ByteBuffer src = ByteBuffer.wrap(buffer, offset, length);
+        while (src.hasRemaining())
+            channel.write(src, position + src.position() - offset);
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+        while (dst.hasRemaining())
+        {
+            if (channel.read(dst, position + dst.position() - offset) < 0)
+                throw new EOFException();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException
+    {
+        channel.force(false);
+    }
+
+    @Override
+    public FileChannel getChannel(long position, int length)
+    {
+        return channel;
+    }
+
+    @Override
+    public long getChannelPosition(long position)
+    {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Accumulate newly completed pieces for Config.HaveBatch milliseconds and announce them to all PeerSeed at once,
+ * so that neighbors supporting HAVE_SET receive one msg per batch instead of one HAVE per piece
+ */
+public class HaveBatchThread extends PieceBatchThread
+{
+    private final Peer thisPeer;
+
+    HaveBatchThread(Peer thisPeer)
+    {
+        super("HaveBatchThread", thisPeer.getConfig().HaveBatch);
+        this.thisPeer = thisPeer;
+    }
+
+    /**
+     * Announce a batch of new pieces
+     * @param pieces piece indexes
+     */
+    @Override
+    protected void flush(int[] pieces)
+    {
+        thisPeer.announceNewPieces(pieces);
+    }
+}
@@ -0,0 +1,121 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Payload of HAVE_SET msg, announces several pieces at once. The first byte is the encoding:
+ * <ul>
+ *     <li>ENCODING_RUNS: list of (first piece index, number of pieces) runs, 4 bytes each</li>
+ *     <li>ENCODING_BITMAP: index of the first piece (4 bytes), then a bitmap starting at this piece, MSB first</li>
+ * </ul>
+ * The smaller one is used.
+ */
+public class HaveSet
+{
+    static final byte ENCODING_RUNS = 0;
+    static final byte ENCODING_BITMAP = 1;
+
+    /**
+     * Make the payload of HAVE_SET msg
+     * @param pieces piece indexes, not empty
+     * @return payload
+     */
+    public static byte[] encode(int[] pieces)
+    {
+        int[] sorted = pieces.clone();
+        Arrays.sort(sorted);
+
+        int numOfRuns = 1;
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] > sorted[i - 1] + 1) numOfRuns++;
+
+        int first = sorted[0];
+        int bitmapLength = (sorted[sorted.length - 1] - first) / 8 + 1;
+
+        if (4 + bitmapLength < 8 * numOfRuns)
+        {
+            ByteBuffer payload = ByteBuffer.allocate(1 + 4 + bitmapLength);
+            payload.put(ENCODING_BITMAP);
+            payload.putInt(first);
+            byte[] bitmap = payload.array();
+            for (int idx : sorted)
+                bitmap[5 + (idx - first) / 8] |= 0x80 >> ((idx - first) % 8);
+            return bitmap;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 * numOfRuns);
+        payload.put(ENCODING_RUNS);
+        int start = 0;
+        for (int i = 1; i <= sorted.length; i++)
+        {
+            if (i == sorted.length || sorted[i] > sorted[i - 1] + 1)
+            {
+                payload.putInt(sorted[start]);
+                payload.putInt(sorted[i - 1] - sorted[start] + 1);
+                start = i;
+            }
+        }
+        return payload.array();
+    }
+
+    /**
+     * Translate the payload of HAVE_SET msg to piece indexes, indexes out of range are ignored. The payload is read
+     * twice, to count the pieces and then to fill an array of that size
+     * @param payload payload
+     * @param numOfPieces number of pieces of the file
+     * @return piece indexes
+     */
+    public static int[] decode(byte[] payload, int numOfPieces)
+    {
+        if (payload == null || payload.length == 0)
+            return new int[0];
+
+        int[] pieces = new int[read(payload, numOfPieces, null)];
+        read(payload, numOfPieces, pieces);
+        return pieces;
+    }
+
+    /**
+     * Walk the piece indexes of a payload
+     * @param payload payload
+     * @param numOfPieces number of pieces of the file
+     * @param pieces array receiving the indexes, null to only count them
+     * @return number of indexes
+     */
+    private static int read(byte[] payload, int numOfPieces, int[] pieces)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 1, payload.length - 1);
+        int count = 0;
+
+        if (payload[0] == ENCODING_BITMAP)
+        {
+            if (buffer.remaining() < 4) return 0;
+            long first = buffer.getInt();
+            for (int i = 0; i < buffer.remaining() * 8; i++)
+            {
+                long idx = first + i;
+                if ((payload[5 + i / 8] & (0x80 >> (i % 8))) != 0 && idx >= 0 && idx < numOfPieces
+                        && count < numOfPieces)
+                {
+                    if (pieces != null) pieces[count] = (int) idx;
+                    count++;
+                }
+            }
+        }
+        else
+        {
+            while (buffer.remaining() >= 8)
+            {
+                long start = buffer.getInt();
+                long length = buffer.getInt();
+                long from = Math.max(0, start);
+                long to = Math.min(Math.min(numOfPieces, start + length), from + numOfPieces - count);
+                if (pieces != null)
+                    for (long idx = from; idx < to; idx++)
+                        pieces[count + (int) (idx - from)] = (int) idx;
+                count += (int) Math.max(0, to - from);
+            }
+        }
+
+        return count;
+    }
+}
@@ -1,43 +1,67 @@
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A thread waits for string and then write to log file
+ * A thread writes the log lines of a peer to its log file in batches. println copies its arguments into a preallocated
+ * ring of mutable records, the time is taken as a number and the line is formatted by the writer thread, which drains
+ * the ring every Config.LogFlush milliseconds (or sooner once it is half full) into a single write. With a template such
+ * as "Peer {} has the piece {}" and int arguments, logging allocates nothing on the caller's side but the short-lived
+ * Instant of the clock read. The time is printed as LocalDateTime.now() would print it.
  */
 public class Log implements Runnable
 {
-    static class LogMsg
+    /**
+     * A log line waiting to be written
+     */
+    static class LogRecord
     {
-        String time;
-        String content;
-
-        public LogMsg(String time, String content)
-        {
-            this.time = time;
-            this.content = content;
-        }
+        long time; // nanoseconds since the epoch
+        String content; // the whole line, or a template with {} for each argument
+        int numOfArgs;
+        final long[] args = new long[MAX_ARGS];
     }
 
-    private static FileWriter file;
-    private static BlockingQueue<LogMsg> queue = new LinkedBlockingQueue<>();
-    private static Thread thread;
+    private static final int CAPACITY = 8192; // records in the ring
+    private static final int MAX_ARGS = 4;
+
+    private final Writer file;
+    private final int flushMs;
+    private final Thread thread;
+
+    /* the ring, records from tail (inclusive) to head (exclusive) are waiting, guarded by lock */
+    private final LogRecord[] ring = new LogRecord[CAPACITY];
+    private long head = 0;
+    private long tail = 0;
+    private boolean closed = false;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
 
     /**
-     * Create log file, initialize peer ID
+     * Create the log file log_peer_[peerId].log and start the writer thread
      *
+     * @param dir directory of the log file
      * @param peerId
+     * @param flushMs interval between two writes, in milliseconds
      * @throws IOException
      */
-    public static void initialization(int peerId) throws IOException
+    Log(File dir, int peerId, int flushMs) throws IOException
     {
-        String fileName = "log_peer_" + peerId + ".log";
-        file = new FileWriter(fileName, false);
+        for (int i = 0; i < CAPACITY; i++)
+            ring[i] = new LogRecord();
+
+        this.flushMs = Math.max(1, flushMs);
+        file = new FileWriter(new File(dir, "log_peer_" + peerId + ".log"), false);
 
-        thread = new Thread(new Log());
-        thread.start();
+        thread = Threads.start(this, "Log-" + peerId);
     }
 
     /**
@@ -45,39 +69,145 @@ public class Log implements Runnable
      *
      * @param logIn
      */
-    public static void println(String logIn)
+    public void println(String logIn)
     {
+        append(logIn, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * print a template to the log file with time, each {} is replaced by the next argument when the line is written
+     * @param template line with {} for the arguments
+     * @param a first argument
+     * @param b second argument
+     */
+    public void println(String template, long a, long b)
+    {
+        append(template, 2, a, b, 0, 0);
+    }
+
+    /**
+     * print a template to the log file with time
+     * @param template line with {} for the arguments
+     * @param a first argument
+     * @param b second argument
+     * @param c third argument
+     */
+    public void println(String template, long a, long b, long c)
+    {
+        append(template, 3, a, b, c, 0);
+    }
+
+    /**
+     * print a template to the log file with time
+     * @param template line with {} for the arguments
+     * @param a first argument
+     * @param b second argument
+     * @param c third argument
+     * @param d fourth argument
+     */
+    public void println(String template, long a, long b, long c, long d)
+    {
+        append(template, 4, a, b, c, d);
+    }
+
+    /**
+     * Number of lines waiting to be written
+     * @return queue depth
+     */
+    public long getQueueSize()
+    {
+        lock.lock();
         try
         {
-            queue.put(new LogMsg(getCurrentTime(), logIn));
-        } catch (InterruptedException e)
+            return head - tail;
+        } finally
         {
-            e.printStackTrace();
+            lock.unlock();
         }
     }
 
     /**
-     * Get current time
-     * @return time as String
+     * Copy a line into the next record of the ring, waiting if the ring is full
      */
-    private static String getCurrentTime()
+    private void append(String content, int numOfArgs, long a, long b, long c, long d)
     {
-        LocalDateTime time = LocalDateTime.now();
-        return time.toString();
+        Instant now = Instant.now(); // the clock of LocalDateTime.now(), with the same precision
+        long time = now.getEpochSecond() * 1000000000L + now.getNano();
+
+        lock.lock();
+        try
+        {
+            while (head - tail == CAPACITY && !closed)
+                notFull.awaitUninterruptibly();
+            if (closed) return;
+
+            LogRecord r = ring[(int) (head % CAPACITY)];
+            r.time = time;
+            r.content = content;
+            r.numOfArgs = numOfArgs;
+            r.args[0] = a;
+            r.args[1] = b;
+            r.args[2] = c;
+            r.args[3] = d;
+
+            if (++head - tail == CAPACITY / 2)
+                notEmpty.signal(); // don't wait for the flush interval
+        } finally
+        {
+            lock.unlock();
+        }
     }
 
     @Override
     public void run()
     {
+        StringBuilder batch = new StringBuilder();
+        ZoneId zone = ZoneId.systemDefault();
+
         try
         {
             while (true)
             {
-                LogMsg msg = queue.take();
-                if (msg.time.equals(""))
+                long from, to;
+                boolean last;
+                lock.lock();
+                try
+                {
+                    if (head == tail && !closed)
+                        notEmpty.await(flushMs, TimeUnit.MILLISECONDS);
+                    from = tail;
+                    to = head;
+                    last = closed;
+                } finally
+                {
+                    lock.unlock();
+                }
+
+                // the records from..to are not touched by println until tail moves past them
+                for (long i = from; i < to; i++)
+                    format(ring[(int) (i % CAPACITY)], zone, batch);
+
+                if (batch.length() > 0)
+                {
+                    file.write(batch.toString());
+                    file.flush();
+                    batch.setLength(0);
+                }
+
+                lock.lock();
+                try
+                {
+                    for (long i = from; i < to; i++)
+                        ring[(int) (i % CAPACITY)].content = null;
+                    tail = to;
+                    notFull.signalAll();
+                } finally
+                {
+                    lock.unlock();
+                }
+
+                if (last && from == to)
                     break;
-                file.write("[" + msg.time + "]: " + msg.content + "\n");
-                file.flush();
             }
         } catch (InterruptedException | IOException e)
         {
@@ -95,13 +225,47 @@ public class Log implements Runnable
     }
 
     /**
-     * Exit thread procedure
+     * Format a record as "[time]: content"
+     * @param r record
+     * @param zone time zone of the time
+     * @param out output
      */
-    public static void exit()
+    private static void format(LogRecord r, ZoneId zone, StringBuilder out)
     {
+        LocalDateTime time = LocalDateTime.ofInstant(
+                Instant.ofEpochSecond(r.time / 1000000000L, r.time % 1000000000L), zone);
+        out.append('[').append(time).append("]: ");
+
+        String s = r.content;
+        int arg = 0;
+        int start = 0;
+        int pos;
+        while (arg < r.numOfArgs && (pos = s.indexOf("{}", start)) >= 0)
+        {
+            out.append(s, start, pos).append(r.args[arg++]);
+            start = pos + 2;
+        }
+        out.append(s, start, s.length()).append('\n');
+    }
+
+    /**
+     * Exit thread procedure, the lines logged so far are written
+     */
+    public void exit()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+
         try
         {
-            queue.put(new LogMsg("", ""));
             thread.join();
         } catch (InterruptedException e)
         {
@@ -109,4 +273,4 @@ public class Log implements Runnable
             thread.interrupt();
         }
     }
-}
\ No newline at end of file
+}
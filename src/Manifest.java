@@ -0,0 +1,239 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 digest of every piece of the shared file. A seeder generates it from its store, in parallel over memory-mapped
+ * chunks, and writes it next to Common.cfg as [FileName].sha256, where every peer reads it and checks the pieces it
+ * receives. Peers also send it to their neighbors in a MANIFEST msg, which a peer in another working directory writes
+ * there. The file and the msg hold MAGIC, the file size, the piece size, then the digests in piece order.
+ */
+public class Manifest
+{
+    private static final int MAGIC = 0x4D4D5431; // "MMT1"
+    private static final int DIGEST_LENGTH = 32;
+    private static final long CHUNK_SIZE = 64L << 20; // bytes mapped at once by a generating task
+    private static final int HEADER_LENGTH = 4 + 8 + 4; // MAGIC, file size, piece size
+
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numOfPieces;
+    private final byte[] digests;
+
+    /* each verifying thread reuses its digest and its piece buffer */
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(Manifest::newDigest);
+    private final ThreadLocal<byte[]> pieceBuffer;
+
+    private Manifest(long fileSize, int pieceSize)
+    {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numOfPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        this.digests = new byte[numOfPieces * DIGEST_LENGTH];
+        pieceBuffer = ThreadLocal.withInitial(() -> new byte[pieceSize]);
+    }
+
+    /**
+     * Hash every piece of the shared file, each task of the pool hashes at most CHUNK_SIZE bytes
+     * @param store store of the file
+     * @param fileSize size of the file
+     * @param pieceSize size of a piece
+     * @param pool pool running the tasks
+     * @return the manifest
+     * @throws IOException
+     */
+    static Manifest generate(PieceStore store, long fileSize, int pieceSize, ForkJoinPool pool) throws IOException
+    {
+        Manifest manifest = new Manifest(fileSize, pieceSize);
+
+        try
+        {
+            pool.invoke(new HashTask(store, manifest, 0, manifest.numOfPieces));
+        } catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        return manifest;
+    }
+
+    /**
+     * Hashes the pieces from..to of the file, split in halves until they fit in a chunk. A chunk in a single file is
+     * mapped, a chunk split over several files is read piece by piece
+     */
+    private static class HashTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final PieceStore store;
+        private final Manifest manifest; // its digests are filled in
+        private final int from, to;
+
+        HashTask(PieceStore store, Manifest manifest, int from, int to)
+        {
+            this.store = store;
+            this.manifest = manifest;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > 1 && (long) (to - from) * manifest.pieceSize > CHUNK_SIZE)
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(store, manifest, from, mid), new HashTask(store, manifest, mid, to));
+                return;
+            }
+
+            try
+            {
+                long start = (long) from * manifest.pieceSize;
+                int length = (int) (Math.min(manifest.fileSize, (long) to * manifest.pieceSize) - start);
+                FileChannel channel = store.getChannel(start, length);
+                long channelStart = store.getChannelPosition(start);
+                if (channel != null && channel.size() < channelStart + length)
+                    throw new IOException("The shared file is shorter than FileSize");
+
+                MappedByteBuffer chunk = (channel == null) ? null :
+                        channel.map(FileChannel.MapMode.READ_ONLY, channelStart, length);
+                byte[] buffer = (channel == null) ? new byte[manifest.pieceSize] : null;
+
+                MessageDigest md = newDigest();
+                for (int idx = from; idx < to; idx++)
+                {
+                    int position = (int) ((long) (idx - from) * manifest.pieceSize);
+                    int pieceLength = manifest.getPieceLength(idx);
+                    if (chunk != null)
+                    {
+                        chunk.limit(position + pieceLength).position(position);
+                        md.update(chunk);
+                    }
+                    else
+                    {
+                        store.read(start + position, buffer, 0, pieceLength);
+                        md.update(buffer, 0, pieceLength);
+                    }
+                    md.digest(manifest.digests, idx * DIGEST_LENGTH, DIGEST_LENGTH);
+                }
+            } catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            } catch (DigestException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Read a manifest file
+     * @param file path of the file
+     * @param fileSize expected size of the shared file
+     * @param pieceSize expected size of a piece
+     * @return the manifest, null if the file doesn't exist or is for another file size or piece size
+     * @throws IOException
+     */
+    static Manifest read(File file, long fileSize, int pieceSize) throws IOException
+    {
+        if (!file.exists())
+            return null;
+
+        return fromByteArray(Files.readAllBytes(file.toPath()), fileSize, pieceSize);
+    }
+
+    /**
+     * Parse a manifest, e.g. the payload of a MANIFEST msg
+     * @param bytes the manifest as written by toByteArray
+     * @param fileSize expected size of the shared file
+     * @param pieceSize expected size of a piece
+     * @return the manifest, null if it is for another file size or piece size, or truncated
+     */
+    static Manifest fromByteArray(byte[] bytes, long fileSize, int pieceSize)
+    {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_LENGTH || in.getInt() != MAGIC || in.getLong() != fileSize
+                || in.getInt() != pieceSize)
+            return null;
+
+        Manifest manifest = new Manifest(fileSize, pieceSize);
+        if (in.remaining() != manifest.digests.length)
+            return null;
+        in.get(manifest.digests);
+        return manifest;
+    }
+
+    /**
+     * Serialize the manifest, for its file and for MANIFEST msgs
+     * @return MAGIC, file size, piece size and the digests
+     */
+    byte[] toByteArray()
+    {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + digests.length);
+        out.putInt(MAGIC);
+        out.putLong(fileSize);
+        out.putInt(pieceSize);
+        out.put(digests);
+        return out.array();
+    }
+
+    /**
+     * Write the manifest to a file, replaced at once so that a reader never sees a partial file
+     * @param file path of the file
+     * @throws IOException
+     */
+    void write(File file) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), toByteArray());
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a piece back from the store and compare its digest
+     * @param store store of the shared file
+     * @param idx index of piece
+     * @return true if the piece matches the manifest
+     * @throws IOException
+     */
+    boolean verify(PieceStore store, int idx) throws IOException
+    {
+        int length = getPieceLength(idx);
+        byte[] buffer = pieceBuffer.get();
+        store.read((long) idx * pieceSize, buffer, 0, length);
+
+        MessageDigest md = digest.get();
+        md.update(buffer, 0, length);
+        byte[] actual = md.digest();
+        return Arrays.equals(actual, 0, DIGEST_LENGTH, digests, idx * DIGEST_LENGTH, (idx + 1) * DIGEST_LENGTH);
+    }
+
+    private int getPieceLength(int idx)
+    {
+        if (idx == numOfPieces - 1)
+            return (int) (fileSize - (long) idx * pieceSize);
+        return pieceSize;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * PieceStore mapping the whole file into memory. The file is mapped as consecutive windows because a single mapping
+ * can't exceed 2 GB, and a region crossing a window boundary is split. Reads and writes use absolute get/put on the
+ * mappings, so there is no lock and concurrent writes of different pieces proceed in parallel.
+ */
+public class MappedPieceStore implements PieceStore
+{
+    static final long WINDOW_SIZE = 1L << 30; // 1 GB
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] windows;
+    private final long windowSize;
+
+    MappedPieceStore(String path, long size, long windowSize) throws IOException
+    {
+        this.windowSize = windowSize;
+
+        file = new RandomAccessFile(path, "rw");
+        if (file.length() < size)
+            file.setLength(size);
+        channel = file.getChannel();
+
+        int numOfWindows = (int) ((size + windowSize - 1) / windowSize);
+        windows = new MappedByteBuffer[numOfWindows];
+        for (int i = 0; i < numOfWindows; i++)
+        {
+            long start = i * windowSize;
+            windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(windowSize, size - start));
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length)
+    {
+        while (length > 0)
+        {
+            int w = (int) (position / windowSize);
+            int windowOffset = (int) (position % windowSize);
+            int n = (int) Math.min(length, windowSize - windowOffset);
+
+            windows[w].put(windowOffset, buffer, offset, n);
+
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length)
+    {
+        while (length > 0)
+        {
+            int w = (int) (position / windowSize);
+            int windowOffset = (int) (position % windowSize);
+            int n = (int) Math.min(length, windowSize - windowOffset);
+
+            windows[w].get(windowOffset, buffer, offset, n);
+
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void sync()
+    {
+        for (MappedByteBuffer w : windows)
+            w.force();
+    }
+
+    @Override
+    public FileChannel getChannel(long position, int length)
+    {
+        return channel;
+    }
+
+    @Override
+    public long getChannelPosition(long position)
+    {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        sync();
+        file.close();
+    }
+}
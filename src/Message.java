@@ -8,6 +8,9 @@ public class Message
     public static final byte TYPE_BITFIELD = 5;
     public static final byte TYPE_REQUEST = 6;
     public static final byte TYPE_PIECE = 7;
+    public static final byte TYPE_HAVE_SET = 8; // only sent to neighbors that negotiated it, see HaveSet
+    public static final byte TYPE_CANCEL = 9; // same payload as REQUEST
+    public static final byte TYPE_MANIFEST = 10; // only sent to neighbors that negotiated it, see Manifest
 
     private final int type;
     private final byte[] payload;
@@ -0,0 +1,324 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of a peer, published as the attributes of a JMX MBean and as plain text
+ * ("name value" per line) on http://127.0.0.1:Config.MetricsPort/metrics. Counters and histograms are updated
+ * with LongAdders, so the hot paths never take a lock; gauges are only computed when the metrics are read.
+ */
+public class Metrics implements DynamicMBean
+{
+    /**
+     * A monotonic counter
+     */
+    public static class Counter
+    {
+        private final LongAdder count = new LongAdder();
+
+        public void inc()
+        {
+            count.increment();
+        }
+
+        public void add(long n)
+        {
+            count.add(n);
+        }
+
+        public long get()
+        {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Latency histogram with power-of-two buckets of nanoseconds, quantiles are the upper bound of their bucket
+     */
+    public static class Histogram
+    {
+        private static final int NUM_OF_BUCKETS = 40; // up to 2^40 ns, about 18 minutes
+
+        private final LongAdder[] buckets = new LongAdder[NUM_OF_BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram()
+        {
+            for (int i = 0; i < NUM_OF_BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        /**
+         * Record a latency
+         * @param nanos latency in nanoseconds
+         */
+        public void record(long nanos)
+        {
+            if (nanos < 0) return;
+
+            int b = Math.min(NUM_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+            buckets[b].increment();
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public long getMean()
+        {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        /**
+         * Estimate a quantile
+         * @param q quantile, from 0 to 1
+         * @return upper bound of the bucket of the quantile in nanoseconds, 0 if empty
+         */
+        public long getQuantile(double q)
+        {
+            long[] counts = new long[NUM_OF_BUCKETS];
+            long n = 0;
+            for (int i = 0; i < NUM_OF_BUCKETS; i++)
+                n += counts[i] = buckets[i].sum();
+            if (n == 0) return 0;
+
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < NUM_OF_BUCKETS; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(getMax(), (1L << i) - 1);
+            }
+            return getMax();
+        }
+    }
+
+    /* names in registration order, guarded by this */
+    private final Map<String, LongSupplier> values = new LinkedHashMap<>();
+
+    private ObjectName objectName;
+    private HttpServer httpServer;
+
+    /**
+     * Register a counter
+     * @param name metric name
+     * @return the counter
+     */
+    public Counter counter(String name)
+    {
+        Counter c = new Counter();
+        gauge(name, c::get);
+        return c;
+    }
+
+    /**
+     * Register a value that is computed when the metrics are read, e.g. a queue depth
+     * @param name metric name
+     * @param value supplier of the value
+     */
+    public synchronized void gauge(String name, LongSupplier value)
+    {
+        values.put(name, value);
+    }
+
+    /**
+     * Register a latency histogram, read as name_count, name_mean_us, name_p50_us, name_p99_us and name_max_us
+     * @param name metric name
+     * @return the histogram
+     */
+    public Histogram histogram(String name)
+    {
+        Histogram h = new Histogram();
+        gauge(name + "_count", h::getCount);
+        gauge(name + "_mean_us", () -> h.getMean() / 1000);
+        gauge(name + "_p50_us", () -> h.getQuantile(0.5) / 1000);
+        gauge(name + "_p99_us", () -> h.getQuantile(0.99) / 1000);
+        gauge(name + "_max_us", () -> h.getMax() / 1000);
+        return h;
+    }
+
+    /**
+     * Read all metrics
+     * @return name to value, in registration order
+     */
+    public Map<String, Long> snapshot()
+    {
+        Map<String, LongSupplier> copy;
+        synchronized (this)
+        {
+            copy = new LinkedHashMap<>(values);
+        }
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> item : copy.entrySet())
+            result.put(item.getKey(), item.getValue().getAsLong());
+        return result;
+    }
+
+    /**
+     * Format all metrics as text
+     * @return one "name value" line per metric
+     */
+    public String toText()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> item : snapshot().entrySet())
+            sb.append(item.getKey()).append(' ').append(item.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Register the MBean, and start the HTTP endpoint if port is positive
+     * @param peerId peer ID, part of the MBean name
+     * @param port loopback port of the HTTP endpoint, 0 to disable it
+     */
+    public void start(int peerId, int port)
+    {
+        try
+        {
+            objectName = new ObjectName("mmt:type=Peer,id=" + peerId);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e)
+        {
+            e.printStackTrace();
+            objectName = null;
+        }
+
+        if (port <= 0) return;
+
+        try
+        {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody())
+                {
+                    out.write(body);
+                }
+            });
+            httpServer.setExecutor(null); // the server's own thread
+            httpServer.start();
+            System.out.println("Metrics at http://127.0.0.1:" + port + "/metrics");
+        } catch (BindException e)
+        {
+            System.out.println("Metrics port " + port + " is in use, the HTTP endpoint is disabled");
+            httpServer = null;
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            httpServer = null;
+        }
+    }
+
+    /**
+     * Exit procedure
+     */
+    public void exit()
+    {
+        if (httpServer != null)
+            httpServer.stop(0);
+
+        try
+        {
+            if (objectName != null)
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        LongSupplier value;
+        synchronized (this)
+        {
+            value = values.get(attribute);
+        }
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value.getAsLong();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+    {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        AttributeList list = new AttributeList();
+        for (String name : attributes)
+        {
+            try
+            {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e)
+            {
+                // skipped, as the interface allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public synchronized MBeanInfo getMBeanInfo()
+    {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet())
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+
+        return new MBeanInfo(getClass().getName(), "Metrics of a peer", attributes, null,
+                new MBeanOperationInfo[0], null);
+    }
+}
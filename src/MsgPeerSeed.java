@@ -1,12 +1,14 @@
 public class MsgPeerSeed
 {
     static final byte TYPE_MSG = 0;
-    static final byte TYPE_NEW_PIECE = 1;
+    static final byte TYPE_NEW_PIECE = 1; // content: int[] of the new piece indexes
     static final byte TYPE_EXIT = 2;
     static final byte TYPE_UNCHOKE = 3;
     static final byte TYPE_CHOKE = 4;
-    static final byte TYPE_TIMEOUT = 5;
-    static final byte TYPE_REQUEST = 6;
+    static final byte TYPE_TIMEOUT = 5; // content: index of the block that can be requested again
+    static final byte TYPE_REQUEST = 6; // content: index of the received block
+    static final byte TYPE_CANCEL = 7; // content: index of the block received from another neighbor in endgame mode
+    static final byte TYPE_MANIFEST = 8; // content: payload of the MANIFEST msg, once this peer has the manifest
 
     private final byte eventType;
     private final Object content;
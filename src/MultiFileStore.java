@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PieceStore of a content made of several files, listed by the File lines of Common.cfg. The files are laid out one
+ * after the other in a single space of 64-bit positions, so a piece may span a file boundary and is then split. Each
+ * file has its own store and there is no lock here, so reads and writes of different files proceed in parallel.
+ */
+public class MultiFileStore implements PieceStore
+{
+    private final PieceStore[] stores;
+    private final long[] starts; // position of the first byte of each file
+    private final long size;
+
+    /**
+     * Open or create the files of a content
+     * @param dir directory of the files
+     * @param files files of the content, in order
+     * @param storage Config.STORAGE_MMAP or Config.STORAGE_FILE
+     * @throws IOException
+     */
+    MultiFileStore(String dir, List<Config.ContentFile> files, String storage) throws IOException
+    {
+        File root = new File(dir).getCanonicalFile();
+        stores = new PieceStore[files.size()];
+        starts = new long[files.size()];
+
+        long position = 0;
+        try
+        {
+            for (int i = 0; i < files.size(); i++)
+            {
+                Config.ContentFile f = files.get(i);
+                File file = new File(root, f.path).getCanonicalFile();
+                if (!file.toPath().startsWith(root.toPath()) || file.equals(root))
+                    throw new IOException("File " + f.path + " is outside of " + root);
+
+                File parent = file.getParentFile();
+                if (!parent.exists() && !parent.mkdirs())
+                    throw new IOException("Can't create " + parent);
+
+                stores[i] = PieceStore.open(file.getPath(), f.size, storage);
+                starts[i] = position;
+                position += f.size;
+            }
+        } catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+        size = position;
+    }
+
+    /**
+     * Find the file holding a position, skipping empty files
+     * @param position position in the content
+     * @return index of the file
+     */
+    private int fileAt(long position)
+    {
+        int i = Arrays.binarySearch(starts, position);
+        if (i < 0)
+            i = -i - 2; // the last file starting before the position
+        while (i < starts.length - 1 && starts[i + 1] <= position)
+            i++;
+        return i;
+    }
+
+    private long fileSize(int i)
+    {
+        return ((i < starts.length - 1) ? starts[i + 1] : size) - starts[i];
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int i = fileAt(position);
+            long fileOffset = position - starts[i];
+            int n = (int) Math.min(length, fileSize(i) - fileOffset);
+
+            stores[i].write(fileOffset, buffer, offset, n);
+
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int i = fileAt(position);
+            long fileOffset = position - starts[i];
+            int n = (int) Math.min(length, fileSize(i) - fileOffset);
+
+            stores[i].read(fileOffset, buffer, offset, n);
+
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Sync the files in parallel, each one is a separate flush to the disk
+     * @throws IOException
+     */
+    @Override
+    public void sync() throws IOException
+    {
+        try
+        {
+            Arrays.stream(stores).parallel().forEach(store -> {
+                try
+                {
+                    store.sync();
+                } catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public FileChannel getChannel(long position, int length)
+    {
+        int i = fileAt(position);
+        long fileOffset = position - starts[i];
+        if (fileOffset + length > fileSize(i))
+            return null;
+        return stores[i].getChannel(fileOffset, length);
+    }
+
+    @Override
+    public long getChannelPosition(long position)
+    {
+        int i = fileAt(position);
+        return stores[i].getChannelPosition(position - starts[i]);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        IOException error = null;
+        for (PieceStore store : stores)
+        {
+            try
+            {
+                if (store != null)
+                    store.close();
+            } catch (IOException e)
+            {
+                error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+}
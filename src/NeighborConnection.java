@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Common part of a connection to a neighbor, shared by the networking engines (PeerThread and NioConnection)
+ */
+public abstract class NeighborConnection
+{
+    static final String HANDSHAKE_HEADER = "P2PFILESHARINGPROJ";
+    static final int HANDSHAKE_MANIFEST_FLAG = 26; // '1' if MANIFEST msg is supported
+    static final int HANDSHAKE_HAVE_SET_FLAG = 27; // last reserved byte, '1' if HAVE_SET msg is supported
+
+    protected final Peer thisPeer;
+    protected PeerInfo target;
+    protected final boolean initiator;
+    protected boolean haveSetSupported = false; // both sides set HANDSHAKE_HAVE_SET_FLAG
+    protected boolean manifestSupported = false; // both sides set HANDSHAKE_MANIFEST_FLAG
+
+    /* (piece index, begin) of the requests waiting for PeerSeed, true once cancelled by the neighbor */
+    private final ConcurrentHashMap<Long, Boolean> queuedRequests = new ConcurrentHashMap<>();
+
+    NeighborConnection(Peer thisPeer, PeerInfo target, boolean initiator)
+    {
+        this.thisPeer = thisPeer;
+        this.target = target;
+        this.initiator = initiator;
+    }
+
+    /**
+     * Send message to neighbor
+     * @param msg Message object
+     */
+    abstract void sendMessage(Message msg);
+
+    /**
+     * Send a PIECE msg whose data goes from the file to the socket without being copied into the heap
+     * @param prefix payload before the data: piece index, and begin if it is a block
+     * @param file file to read the piece from
+     * @param position position of the data in the file
+     * @param length length of the data
+     * @return true if sent, false if the transport can't do it and the piece should be sent by sendMessage
+     * @throws IOException if the piece couldn't be sent, the connection is then closed
+     */
+    boolean sendPiece(byte[] prefix, FileChannel file, long position, int length) throws IOException
+    {
+        return false;
+    }
+
+    /**
+     * Send a msg to PeerSeed
+     * @param type type of MsgPeerSeed
+     * @param content object to send
+     */
+    abstract void sendSeed(byte type, Object content);
+
+    /**
+     * Number of events waiting for the PeerSeed
+     * @return queue depth
+     */
+    abstract int getSeedQueueSize();
+
+    /**
+     * exit procedure for the connection
+     * @throws IOException
+     */
+    public abstract void exit() throws IOException;
+
+    public PeerInfo getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Check if the neighbor accepts HAVE_SET msg, known after handshake
+     * @return true if HAVE_SET can be sent
+     */
+    public boolean isHaveSetSupported()
+    {
+        return haveSetSupported;
+    }
+
+    /**
+     * Check if the neighbor accepts MANIFEST msg, known after handshake
+     * @return true if MANIFEST can be sent
+     */
+    public boolean isManifestSupported()
+    {
+        return manifestSupported;
+    }
+
+    /**
+     * Make handshake message of this peer
+     * @return handshake message
+     */
+    protected byte[] makeHandShake()
+    {
+        String messageOut = HANDSHAKE_HEADER + "00000000" + "1" + "1" + thisPeer.getPeerId(); // MANIFEST, HAVE_SET
+        return messageOut.getBytes();
+    }
+
+    /**
+     * Make the frame of a message: length, type and payload
+     * @param msg Message object
+     * @return frame, ready to be written
+     */
+    protected static ByteBuffer makeFrame(Message msg)
+    {
+        byte[] payload = msg.getPayload();
+        int length = (payload == null) ? 1 : 1 + payload.length;
+
+        ByteBuffer frame = ByteBuffer.allocate(Misc.MESSAGE_LENGTH_LENGTH + length);
+        frame.putInt(length);
+        frame.put((byte) msg.getType());
+        if (payload != null)
+            frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Make the part of a PIECE msg before the data: length, type and prefix of the payload
+     * @param prefix payload before the data
+     * @param length length of the data
+     * @return header, ready to be written
+     */
+    protected static ByteBuffer makePieceHeader(byte[] prefix, int length)
+    {
+        ByteBuffer header = ByteBuffer.allocate(Misc.MESSAGE_LENGTH_LENGTH + 1 + prefix.length);
+        header.putInt(1 + prefix.length + length);
+        header.put(Message.TYPE_PIECE);
+        header.put(prefix);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Check the length of a received msg before its payload is allocated. The longest msgs are a PIECE and a MANIFEST,
+     * the connection is closed if a msg is longer or its length is negative.
+     * @param msgLen length of the payload, not including the msg type
+     * @throws IOException if no msg can have this length
+     */
+    protected void checkMessageLength(int msgLen) throws IOException
+    {
+        long maxLen = Math.max(thisPeer.getConfig().PieceSize, 32L * thisPeer.NUM_OF_PIECES) + 16;
+        if (msgLen < 0 || msgLen > maxLen)
+            throw new IOException("Invalid message length " + msgLen);
+    }
+
+    /**
+     * Check a received handshake message and find the neighbor
+     * @param buffer handshake message
+     * @return neighbor peer Id, -1 if failed
+     */
+    protected int checkHandShake(byte[] buffer)
+    {
+        String rcvMsg = new String(buffer);
+
+        /* check handshake message */
+        if (!rcvMsg.substring(0, 18).equals(HANDSHAKE_HEADER))
+            return -1;
+
+        int peerId = Integer.parseInt(rcvMsg.substring(28, 32));
+        haveSetSupported = rcvMsg.charAt(HANDSHAKE_HAVE_SET_FLAG) == '1';
+        manifestSupported = rcvMsg.charAt(HANDSHAKE_MANIFEST_FLAG) == '1';
+        if (initiator)
+        {
+            if (peerId != target.getPeerId())
+                return -1;
+        }
+        else
+        {
+            // find peer id and assign target
+            for (PeerInfo p: thisPeer.getPeerList())
+            {
+                if (p.getPeerId() == peerId)
+                {
+                    target = p;
+                    break;
+                }
+            }
+
+            thisPeer.getLog().println("Peer " + thisPeer.getPeerId() + " is connected from Peer " + peerId);
+        }
+
+        return peerId;
+    }
+
+    /**
+     * Process message
+     * @param rcvMsg Message object of the received msg
+     */
+    protected void processReceivedMessage(Message rcvMsg)
+    {
+//        System.out.println("Get: Receive msg of type " + rcvMsg.getType() + " from " + target.getPeerId());
+        switch (rcvMsg.getType())
+        {
+            case Message.TYPE_BITFIELD:
+                PieceBitSet seedBitfield = PieceBitSet.fromByteArray(rcvMsg.getPayload(), thisPeer.NUM_OF_PIECES);
+                thisPeer.setNeighborBitfield(target.getPeerId(), seedBitfield);
+
+                // if there exists an interesting piece, send INTERESTED
+                if (seedBitfield.hasAnyNotIn(thisPeer.getBitfield()))
+                {
+                    sendMessage(new Message(Message.TYPE_INTERESTED, null));
+                    return;
+                }
+
+                sendMessage(new Message(Message.TYPE_NOT_INTERESTED, null));
+                break;
+
+            // HAVE should be handled by PeerSeed to prevent from prematurely sending Not interested
+
+            case Message.TYPE_PIECE:
+                processReceivedPiece(rcvMsg.getPayload(), rcvMsg.getPayload().length);
+                break;
+
+            case Message.TYPE_INTERESTED:
+                thisPeer.setInterestedNeighbor(target.getPeerId(), true);
+                thisPeer.getLog().println("Peer {} received the 'interested' message from {}", thisPeer.getPeerId(),
+                        target.getPeerId());
+                break;
+
+            case Message.TYPE_REQUEST: // served by PeerSeed, it may be cancelled while it waits
+                if (rcvMsg.getPayload() != null && rcvMsg.getPayload().length >= 4)
+                    queuedRequests.put(getRequestKey(rcvMsg.getPayload()), false);
+                sendSeed(MsgPeerSeed.TYPE_MSG, rcvMsg);
+                break;
+
+            case Message.TYPE_CANCEL: // only a request that is still waiting can be cancelled
+                if (rcvMsg.getPayload() != null && rcvMsg.getPayload().length >= 4)
+                    queuedRequests.replace(getRequestKey(rcvMsg.getPayload()), false, true);
+                break;
+
+            case Message.TYPE_MANIFEST:
+                thisPeer.receiveManifest(target.getPeerId(), rcvMsg.getPayload());
+                break;
+
+            case Message.TYPE_NOT_INTERESTED:
+                thisPeer.setInterestedNeighbor(target.getPeerId(), false);
+                thisPeer.getLog().println("Peer {} received the 'not interested' message from {}", thisPeer.getPeerId(),
+                        target.getPeerId());
+                break;
+
+            default: // send to PeerSeed other messages
+                sendSeed(MsgPeerSeed.TYPE_MSG, rcvMsg);
+        }
+    }
+
+    /**
+     * Take a request off the waiting requests, when PeerSeed serves or drops it
+     * @param pieceIdx index of piece
+     * @param begin offset in the piece
+     * @return true if the request has been cancelled by the neighbor and shouldn't be served
+     */
+    boolean takeCancelledRequest(int pieceIdx, int begin)
+    {
+        return queuedRequests.remove(((long) pieceIdx << 32) | (begin & 0xFFFFFFFFL)) == Boolean.TRUE;
+    }
+
+    /**
+     * (piece index, begin) of the payload of a REQUEST or CANCEL msg, begin is 0 for a whole piece
+     * @param payload payload of at least 4 bytes
+     * @return key of the request
+     */
+    private static long getRequestKey(byte[] payload)
+    {
+        ByteBuffer request = ByteBuffer.wrap(payload);
+        int pieceIdx = request.getInt();
+        int begin = (request.remaining() >= 4) ? request.getInt() : 0;
+        return ((long) pieceIdx << 32) | (begin & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Process a PIECE msg, the payload may be a pooled buffer which is released by the caller after this returns
+     * @param payload payload of the PIECE msg
+     * @param length length of the payload
+     */
+    protected void processReceivedPiece(byte[] payload, int length)
+    {
+        int headerLen = thisPeer.getPieceHeaderLength();
+        if (length < headerLen) return;
+
+        // Write to file
+        ByteBuffer header = ByteBuffer.wrap(payload, 0, headerLen);
+        int piece = header.getInt();
+        int begin = thisPeer.isBlockMode() ? header.getInt() : 0;
+        int blockIdx = thisPeer.handleRcvNewPiece(piece, begin, target.getPeerId(), payload, headerLen,
+                length - headerLen);
+
+        if (blockIdx >= 0)
+            sendSeed(MsgPeerSeed.TYPE_REQUEST, blockIdx);
+    }
+
+    /**
+     * Count a received PIECE payload in the download rate of the neighbor
+     * @param length number of bytes received
+     */
+    protected void updateDownloadRate(int length)
+    {
+        thisPeer.addDownloaded(target.getPeerId(), length);
+    }
+}
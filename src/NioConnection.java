@@ -0,0 +1,516 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection to a neighbor served by an I/O thread of NioEngine. The I/O thread only reads and writes the channel
+ * without blocking. The received messages and the events of PeerSeed write and read the file and log, so they are
+ * processed in order by a task of the task pool of NioEngine, one task at a time per connection. Reading pauses while
+ * MAX_INBOUND received messages are waiting for the task.
+ */
+public class NioConnection extends NeighborConnection
+{
+    private static final int EXIT_TIMEOUT_SECOND = 5;
+    private static final int MAX_GATHER = 64; // max number of queued buffers written by a single gathering write
+    private static final int MAX_INBOUND = 16;
+
+    /**
+     * Region of a file to be written to the channel with FileChannel.transferTo
+     */
+    private static class FileRegion
+    {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileChannel file, long position, long length)
+        {
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final NioWorker worker;
+    private final Executor taskPool;
+    private volatile SelectionKey key;
+
+    private final BlockingQueue<MsgPeerSeed> toSeed = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> inbound = new ConcurrentLinkedQueue<>(); // received messages
+    private final AtomicInteger numOfInbound = new AtomicInteger(0);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final PeerSeed peerSeed;
+
+    private final ConcurrentLinkedQueue<Object> outbound = new ConcurrentLinkedQueue<>(); // ByteBuffer or FileRegion
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final WriteStats writeStats;
+    private volatile boolean closing = false;
+    private volatile boolean channelClosed = false;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private volatile boolean handshakeDone = false; // set by the task once the handshake is checked
+    private boolean seedExited = false; // only accessed by the task
+    private volatile boolean readPaused = false; // changed by the I/O thread, read by the task
+
+    /* receiving state, only accessed by the I/O thread */
+    private boolean handshakeReceived = false;
+    private boolean writePending = false;
+    private final ByteBuffer handshakeBuf = ByteBuffer.allocate(Misc.LENGTH_HANDSHAKE);
+    private final ByteBuffer headerBuf = ByteBuffer.allocate(Misc.MESSAGE_LENGTH_LENGTH + 1);
+    private ByteBuffer payloadBuf = null;
+    private boolean pooledPayload = false;
+    private byte msgType;
+
+    NioConnection(Peer thisPeer, PeerInfo target, SocketChannel channel, boolean initiator, NioWorker worker,
+                  Executor taskPool) throws IOException
+    {
+        super(thisPeer, target, initiator);
+        this.channel = channel;
+        this.worker = worker;
+        this.taskPool = taskPool;
+        writeStats = thisPeer.getWriteStats();
+
+        channel.configureBlocking(false);
+        peerSeed = new PeerSeed(thisPeer, this, toSeed);
+    }
+
+    /**
+     * Register this connection with its I/O thread
+     */
+    void register()
+    {
+        worker.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Called by the I/O thread once the channel is registered
+     * @param key selection key of the channel
+     */
+    void onRegistered(SelectionKey key)
+    {
+        this.key = key;
+        if (initiator)
+        {
+            writeStats.addMessage();
+            enqueue(ByteBuffer.wrap(makeHandShake()));
+        }
+    }
+
+    /**
+     * Read as much as possible from the channel and process complete messages
+     * @throws IOException
+     */
+    void onReadable() throws IOException
+    {
+        if (!handshakeReceived)
+        {
+            if (channel.read(handshakeBuf) < 0) throw new EOFException();
+            if (handshakeBuf.hasRemaining()) return;
+
+            // nothing else is read until the task has checked the handshake
+            handshakeReceived = true;
+            readPaused = true;
+            updateInterest();
+            dispatch(this::processHandShake);
+            return;
+        }
+
+        while (key.isValid() && !readPaused)
+        {
+            if (payloadBuf == null)
+            {
+                if (channel.read(headerBuf) < 0) throw new EOFException();
+                if (headerBuf.hasRemaining()) return;
+
+                headerBuf.flip();
+                int msgLen = headerBuf.getInt() - 1; // not including message type
+                msgType = headerBuf.get();
+                headerBuf.clear();
+                checkMessageLength(msgLen);
+
+                BufferPool pool = thisPeer.getReceiveBufferPool();
+                pooledPayload = msgType == Message.TYPE_PIECE && msgLen <= pool.getBufferSize();
+                payloadBuf = pooledPayload ? ByteBuffer.wrap(pool.borrow(), 0, msgLen) : ByteBuffer.allocate(msgLen);
+            }
+
+            if (payloadBuf.hasRemaining())
+            {
+                if (channel.read(payloadBuf) < 0) throw new EOFException();
+                if (payloadBuf.hasRemaining()) return;
+            }
+
+            byte[] payload = payloadBuf.array();
+            int msgLen = payloadBuf.limit();
+            byte type = msgType;
+            payloadBuf = null;
+
+            if (type == Message.TYPE_PIECE)
+                updateDownloadRate(msgLen);
+
+            if (pooledPayload)
+            {
+                dispatch(() -> {
+                    try
+                    {
+                        processReceivedPiece(payload, msgLen);
+                    } finally
+                    {
+                        thisPeer.getReceiveBufferPool().release(payload);
+                    }
+                });
+            }
+            else
+            {
+                dispatch(() -> processReceivedMessage(new Message(type, payload)));
+            }
+
+            if (numOfInbound.get() >= MAX_INBOUND)
+                pauseReading();
+        }
+    }
+
+    /**
+     * Check the received handshake and send the bitfield, called by the task
+     */
+    private void processHandShake()
+    {
+        if (checkHandShake(handshakeBuf.array()) < 0)
+        {
+            worker.execute(this::closeNow);
+            return;
+        }
+
+        if (!initiator)
+        {
+            writeStats.addMessage();
+            enqueue(ByteBuffer.wrap(makeHandShake()));
+        }
+
+        peerSeed.sendBitfield();
+        handshakeDone = true;
+    }
+
+    /**
+     * Stop reading the channel until the task catches up, called by the I/O thread
+     */
+    private void pauseReading()
+    {
+        readPaused = true;
+        if (numOfInbound.get() < MAX_INBOUND) // the task took a message meanwhile, and may have missed readPaused
+            readPaused = false;
+        else
+            updateInterest();
+    }
+
+    /**
+     * Read the channel again once the handshake is checked and the task caught up, called by the I/O thread
+     */
+    private void resumeReading()
+    {
+        if (!readPaused || !handshakeDone || numOfInbound.get() >= MAX_INBOUND || key == null || !key.isValid())
+            return;
+
+        readPaused = false;
+        updateInterest();
+        try
+        {
+            onReadable(); // the data that arrived while paused doesn't select the key again if it is all buffered
+        } catch (IOException | CancelledKeyException e)
+        {
+            closeNow();
+        }
+    }
+
+    /**
+     * Select the key for reading unless paused, and for writing if queued data is left, called by the I/O thread
+     */
+    private void updateInterest()
+    {
+        if (key != null && key.isValid())
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Send message to the channel
+     * @param msg Message object
+     */
+    @Override
+    void sendMessage(Message msg)
+    {
+        writeStats.addMessage();
+        enqueue(makeFrame(msg));
+    }
+
+    /**
+     * Send a PIECE msg, the data is transferred from the file to the channel when the channel is writable
+     * @param prefix payload before the data: piece index, and begin if it is a block
+     * @param file file to read the piece from
+     * @param position position of the data in the file
+     * @param length length of the data
+     * @return true
+     */
+    @Override
+    boolean sendPiece(byte[] prefix, FileChannel file, long position, int length)
+    {
+        writeStats.addMessage();
+        outbound.add(makePieceHeader(prefix, length));
+        enqueue(new FileRegion(file, position, length));
+        return true;
+    }
+
+    /**
+     * Queue data to be written by the I/O thread
+     * @param data ByteBuffer or FileRegion
+     */
+    private void enqueue(Object data)
+    {
+        outbound.add(data);
+        if (worker.inWorkerThread())
+            flushOutbound();
+        else
+            worker.execute(this::flushOutbound);
+    }
+
+    /**
+     * Write queued data until the channel is full, called by the I/O thread
+     */
+    void flushOutbound()
+    {
+        if (key == null || !key.isValid()) return;
+
+        try
+        {
+            Object data;
+            while ((data = outbound.peek()) != null)
+            {
+                boolean done;
+                if (data instanceof FileRegion)
+                {
+                    FileRegion region = (FileRegion) data;
+                    long n = region.file.transferTo(region.position, region.remaining, channel);
+                    writeStats.addWrite(n);
+                    region.position += n;
+                    region.remaining -= n;
+                    done = region.remaining == 0;
+                    if (done) outbound.poll();
+                }
+                else
+                {
+                    done = writeGathered();
+                }
+
+                if (!done)
+                {
+                    writePending = true;
+                    updateInterest();
+                    return;
+                }
+            }
+            writePending = false;
+            updateInterest();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            closeNow();
+            return;
+        }
+
+        if (closing)
+            closeNow();
+    }
+
+    /**
+     * Write the consecutive ByteBuffers at the head of the queue with a single gathering write, written buffers are
+     * removed from the queue
+     * @return true if all of them are written
+     * @throws IOException
+     */
+    private boolean writeGathered() throws IOException
+    {
+        int count = 0;
+        for (Object data : outbound)
+        {
+            if (!(data instanceof ByteBuffer) || count == MAX_GATHER) break;
+            gather[count++] = (ByteBuffer) data;
+        }
+
+        long n = channel.write(gather, 0, count);
+        writeStats.addWrite(n);
+
+        boolean done = true;
+        for (int i = 0; i < count; i++)
+        {
+            if (gather[i].hasRemaining())
+                done = false;
+            else if (done)
+                outbound.poll();
+            gather[i] = null;
+        }
+        return done;
+    }
+
+    /**
+     * Send a msg to PeerSeed, the event is processed by the task
+     * @param type type of MsgPeerSeed
+     * @param content object to send
+     */
+    @Override
+    void sendSeed(byte type, Object content)
+    {
+        toSeed.add(new MsgPeerSeed(type, content));
+        scheduleDrain();
+    }
+
+    /**
+     * Hand a received message to the task
+     * @param msgTask processing of the message
+     */
+    private void dispatch(Runnable msgTask)
+    {
+        numOfInbound.incrementAndGet();
+        inbound.add(msgTask);
+        scheduleDrain();
+    }
+
+    /**
+     * Start the task on the task pool unless it is already running
+     */
+    private void scheduleDrain()
+    {
+        if (drainScheduled.compareAndSet(false, true))
+            taskPool.execute(this::drain);
+    }
+
+    /**
+     * The task: process the received messages, then the events of PeerSeed, until both queues are empty. Once the
+     * channel is closed and the queues are drained, the connection is closed
+     */
+    private void drain()
+    {
+        do
+        {
+            Runnable msgTask;
+            while ((msgTask = inbound.poll()) != null)
+            {
+                try
+                {
+                    msgTask.run();
+                } catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+
+                if (numOfInbound.decrementAndGet() < MAX_INBOUND && readPaused)
+                    worker.execute(this::resumeReading);
+            }
+
+            if (handshakeDone && !seedExited)
+                processEvents();
+
+            drainScheduled.set(false);
+        } while ((!inbound.isEmpty() || (handshakeDone && !seedExited && !toSeed.isEmpty()))
+                && drainScheduled.compareAndSet(false, true));
+
+        if (channelClosed)
+            closed.countDown();
+    }
+
+    /**
+     * Process the pending events of PeerSeed, called by the task. Once PeerSeed exits, the queued data is written and
+     * the channel is closed
+     */
+    private void processEvents()
+    {
+        try
+        {
+            MsgPeerSeed msg;
+            while ((msg = toSeed.poll()) != null)
+            {
+                if (!peerSeed.handleEvent(msg))
+                {
+                    seedExited = true;
+                    break;
+                }
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            seedExited = true;
+        }
+
+        if (seedExited && !channelClosed)
+        {
+            closing = true;
+            worker.execute(this::flushOutbound);
+        }
+    }
+
+    /**
+     * Close the channel immediately, called by the I/O thread. Like PeerSeed thread, the task still processes the
+     * messages and events received before closing (e.g. HAVE)
+     */
+    void closeNow()
+    {
+        if (channelClosed) return;
+        channelClosed = true;
+
+        if (key != null)
+            key.cancel();
+        if (payloadBuf != null && pooledPayload)
+        {
+            thisPeer.getReceiveBufferPool().release(payloadBuf.array());
+            payloadBuf = null;
+        }
+        try
+        {
+            channel.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            System.err.println("Get: Cannot close socket");
+        }
+
+        scheduleDrain();
+    }
+
+    /**
+     * exit procedure for NioConnection, wait until pending events are processed and queued messages are written
+     */
+    @Override
+    public void exit()
+    {
+        sendSeed(MsgPeerSeed.TYPE_EXIT, null);
+        worker.execute(() -> {
+            if (!handshakeDone || key == null)
+                closeNow();
+        });
+
+        try
+        {
+            if (!closed.await(EXIT_TIMEOUT_SECOND, TimeUnit.SECONDS))
+                worker.execute(this::closeNow);
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    int getSeedQueueSize()
+    {
+        return toSeed.size() + numOfInbound.get();
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Networking engine based on Selector. All neighbor connections, including the listening socket, are served by a fixed
+ * number of I/O threads instead of a PeerThread and a PeerSeed thread per neighbor. The received messages and the
+ * events of PeerSeed, which access the disk, are processed by a separate pool of task threads so that a slow disk
+ * doesn't stall the I/O threads.
+ */
+public class NioEngine
+{
+    private static final int EXIT_TIMEOUT_SECOND = 5;
+
+    private final Peer thisPeer;
+    private final ServerSocketChannel serverChannel;
+    private final NioWorker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+    private final ExecutorService taskPool;
+
+    /**
+     * @param thisPeer this peer
+     * @param port listening port
+     * @param numOfThreads number of I/O threads
+     * @param numOfTaskThreads number of threads processing the received messages and the events of PeerSeed
+     * @throws IOException
+     */
+    NioEngine(Peer thisPeer, int port, int numOfThreads, int numOfTaskThreads) throws IOException
+    {
+        this.thisPeer = thisPeer;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        workers = new NioWorker[Math.max(1, numOfThreads)];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new NioWorker(this, i);
+
+        AtomicInteger taskThreadIdx = new AtomicInteger(0);
+        taskPool = Executors.newFixedThreadPool(Math.max(1, numOfTaskThreads),
+                task -> Threads.newThread(task, "NioTask-" + taskThreadIdx.getAndIncrement()));
+
+        System.out.println("Waiting for clients at " + port);
+    }
+
+    /**
+     * Start all I/O threads, the first one also accepts new connections
+     */
+    public void start()
+    {
+        for (NioWorker w : workers)
+            w.start();
+
+        workers[0].register(serverChannel, SelectionKey.OP_ACCEPT, null);
+    }
+
+    /**
+     * Serve a connection made by this peer
+     * @param target neighbor PeerInfo
+     * @param channel connected channel
+     * @return the connection
+     * @throws IOException
+     */
+    public NioConnection addConnection(PeerInfo target, SocketChannel channel) throws IOException
+    {
+        NioConnection conn = new NioConnection(thisPeer, target, channel, true, nextWorker(), taskPool);
+        conn.register();
+        return conn;
+    }
+
+    /**
+     * Accept a new connection, called by the I/O thread when the listening socket is ready
+     * @throws IOException
+     */
+    void accept() throws IOException
+    {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+
+        System.out.println("new connection");
+
+        NioConnection conn = new NioConnection(thisPeer, null, channel, false, nextWorker(), taskPool);
+        thisPeer.addConnection(conn);
+        conn.register();
+    }
+
+    /**
+     * Round-robin the I/O threads
+     * @return the I/O thread to serve a new connection
+     */
+    private NioWorker nextWorker()
+    {
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    /**
+     * Exit procedure, connections should be closed before
+     * @throws IOException
+     */
+    public void exit() throws IOException
+    {
+        serverChannel.close();
+        for (NioWorker w : workers)
+            w.exit();
+
+        taskPool.shutdown();
+        try
+        {
+            if (!taskPool.awaitTermination(EXIT_TIMEOUT_SECOND, TimeUnit.SECONDS))
+                taskPool.shutdownNow();
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An I/O thread, runs the select loop for its connections and the tasks posted to it
+ */
+public class NioWorker implements Runnable
+{
+    private final NioEngine engine;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioWorker(NioEngine engine, int idx) throws IOException
+    {
+        this.engine = engine;
+        selector = Selector.open();
+        thread = Threads.newThread(this, "NioWorker-" + idx);
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                // tasks posted by this thread while handling keys run before blocking again
+                runTasks();
+                selector.select();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        } finally
+        {
+            try
+            {
+                selector.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Dispatch a ready key to the listening socket or to its connection
+     * @param key selected key
+     */
+    private void handleKey(SelectionKey key)
+    {
+        NioConnection conn = (NioConnection) key.attachment();
+        try
+        {
+            if (conn == null)
+            {
+                if (key.isAcceptable())
+                    engine.accept();
+                return;
+            }
+
+            if (key.isValid() && key.isWritable())
+                conn.flushOutbound();
+            if (key.isValid() && key.isReadable())
+                conn.onReadable();
+        } catch (IOException | CancelledKeyException e)
+        {
+            if (conn != null)
+                conn.closeNow();
+            else
+                e.printStackTrace();
+        } catch (RuntimeException e)
+        {
+            // a faulty connection is closed, the other connections of this thread go on
+            e.printStackTrace();
+            if (conn != null)
+                conn.closeNow();
+        }
+    }
+
+    /**
+     * Run tasks posted by other threads
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            } catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run a task in this I/O thread
+     * @param task the task
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        if (!inWorkerThread())
+            selector.wakeup();
+    }
+
+    /**
+     * Check if the caller is this I/O thread
+     * @return true if called from this I/O thread
+     */
+    boolean inWorkerThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Register a channel with the selector of this I/O thread
+     * @param channel channel to register
+     * @param ops interest set
+     * @param conn connection attached to the key, null for the listening socket
+     */
+    void register(SelectableChannel channel, int ops, NioConnection conn)
+    {
+        execute(() -> {
+            try
+            {
+                SelectionKey key = channel.register(selector, ops, conn);
+                if (conn != null)
+                    conn.onRegistered(key);
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+                if (conn != null)
+                    conn.closeNow();
+            }
+        });
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Exit procedure
+     */
+    public void exit()
+    {
+        running = false;
+        selector.wakeup();
+        try
+        {
+            thread.join();
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
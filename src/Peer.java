@@ -1,45 +1,204 @@
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.ConnectException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 
 public class Peer
 {
+    /**
+     * Download progress of a piece that is being requested block by block. Each piece has its own lock, a partial
+     * piece is released once none of its blocks is requested or received, and is not used anymore after that.
+     */
+    private static class PartialPiece
+    {
+        static final int NOT_REQUESTED = 0;
+        static final int BLOCK_RELEASED = 1;
+        static final int PIECE_RELEASED = 2;
+
+        private final byte[] blocks; // missing=0, received=1, requested=2
+        private final Set<Integer> sources = new HashSet<>(); // neighbors that sent blocks
+        private int numOfRequested = 0;
+        private int numOfReceived = 0; // including blocks being written
+        private int numOfWritten = 0;
+        private boolean released = false;
+
+        PartialPiece(int numOfBlocks)
+        {
+            blocks = new byte[numOfBlocks];
+        }
+
+        /**
+         * Mark a missing block as requested
+         * @return index of the block in the piece, -1 if none is missing
+         */
+        synchronized int requestMissingBlock()
+        {
+            if (released) return -1;
+
+            for (int b = 0; b < blocks.length; b++)
+                if (blocks[b] == 0)
+                {
+                    blocks[b] = 2;
+                    numOfRequested++;
+                    return b;
+                }
+            return -1;
+        }
+
+        /**
+         * Mark a requested block as missing again
+         * @param b index of the block in the piece
+         * @return NOT_REQUESTED, BLOCK_RELEASED, or PIECE_RELEASED if the piece is released as well
+         */
+        synchronized int releaseBlock(int b)
+        {
+            if (released || blocks[b] != 2) // not being requested anymore
+                return NOT_REQUESTED;
+
+            blocks[b] = 0;
+            numOfRequested--;
+            if (numOfRequested == 0 && numOfReceived == 0)
+            {
+                released = true;
+                return PIECE_RELEASED;
+            }
+            return BLOCK_RELEASED;
+        }
+
+        /**
+         * Mark a block as received, before writing it
+         * @param b index of the block in the piece
+         * @param neighborId peer ID of neighbor that sent the block
+         * @return 1 if accepted, 0 if it is a duplicate, -1 if this partial piece is released
+         */
+        synchronized int receiveBlock(int b, int neighborId)
+        {
+            if (released) return -1;
+            if (blocks[b] == 1) return 0;
+
+            if (blocks[b] == 2)
+                numOfRequested--;
+            blocks[b] = 1;
+            numOfReceived++;
+            sources.add(neighborId);
+            return 1;
+        }
+
+        /**
+         * Release a complete piece that failed verification, so that it is downloaded again
+         * @return the neighbors that sent its blocks
+         */
+        synchronized Set<Integer> release()
+        {
+            released = true;
+            return new HashSet<>(sources);
+        }
+
+        /**
+         * Count a written block
+         * @return true if all blocks are written
+         */
+        synchronized boolean blockWritten()
+        {
+            return ++numOfWritten == blocks.length;
+        }
+
+        synchronized boolean isBlockRequested(int b)
+        {
+            return !released && blocks[b] == 2;
+        }
+    }
+
+    private static final int MAX_CLAIM_ATTEMPTS = 8;
+
     private final List<PeerInfo> peerList;
     private final int peerId;
+    private final Config config;
+    private final Log log;
+    private final CountDownLatch listening = new CountDownLatch(1); // counted down once neighbors can connect
     private int serverPort;
     private AtomicBoolean hasFile = new AtomicBoolean(false);
 
-    private final byte[] bitfield; // yes=1, no=0, requested=2
-    private final Map<Integer, boolean[]> neighborBitfield;
+    private final AtomicPieceBitSet bitfield; // pieces I have
+    private final AtomicPieceBitSet downloading; // pieces claimed for downloading, a claim is a CAS on this set
+    private final Map<Integer, PartialPiece> partialPieces = new ConcurrentHashMap<>(); // pieces being downloaded
+    private final AtomicInteger numOfPieces = new AtomicInteger(0); // pieces in bitfield
+    private final AtomicInteger numOfCompletedPieces = new AtomicInteger(0); // pieces written and announced
+    private final CountDownLatch fileComplete = new CountDownLatch(1);
+    private volatile boolean endgame = false; // all missing pieces are requested, blocks may be requested twice
+    private final Map<Integer, AtomicPieceBitSet> neighborBitfield; // not modified after construction
+    private final CountDownLatch neighborsComplete; // counted down by each neighbor bitfield that becomes full
+    private final PiecePicker piecePicker; // null if pieces are selected at random
+    private final Map<Integer, Set<Integer>> rejectedFrom = new ConcurrentHashMap<>(); // neighbors that sent a corrupt piece
 
     private final Map<Integer, AtomicBoolean> preferredNeighbor;
     private final Map<Integer, AtomicBoolean> interestedNeighbor;
     private final AtomicInteger optimistUnchoke;
 
-    private final LinkedList<PeerThread> peerThreads = new LinkedList<>();
-    private final ReadWriteLock lock_PeerThreads = new ReentrantReadWriteLock();
+    private final LinkedList<NeighborConnection> connections = new LinkedList<>();
+    private final ReadWriteLock lock_Connections = new ReentrantReadWriteLock();
 
-    private final Map<Integer, Double> downloadRate;
+    private final Map<Integer, RateMeter> downloadMeter; // PIECE payload bytes received from each neighbor
+    private final Map<Integer, RateMeter> uploadMeter; // PIECE payload bytes sent to each neighbor
+    private final Map<Integer, RttEstimator> rttEstimator;
 
-    private final RandomAccessFile file;
+    private final PieceStore store;
+    private final BufferPool receiveBufferPool;
+    private final WriteStats writeStats = new WriteStats();
     private final RequestTimedOutThread requestTimedOutThread;
+    private final HaveBatchThread haveBatchThread; // null if new pieces are announced one by one
+    private final ForkJoinPool verifyPool; // null if pieces are not verified
+    private final File manifestFile;
+    private volatile Manifest manifest; // null until it is read or received
+    private volatile byte[] manifestPayload; // the manifest as sent in MANIFEST msgs, made once
+    private final List<Runnable> waitingForManifest = new ArrayList<>(); // verifications of pieces, guarded by itself
+    private final PieceJournal journal; // null if the peer started with the file or doesn't resume
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter blocksReceived = metrics.counter("blocks_received");
+    private final Metrics.Counter duplicateBlocks = metrics.counter("blocks_duplicate");
+    private final Metrics.Counter piecesReceived = metrics.counter("pieces_received");
+    private final Metrics.Counter piecesServed = metrics.counter("pieces_served");
+    private final Metrics.Counter requestTimeouts = metrics.counter("request_timeouts");
+    private final Metrics.Counter chokesSent = metrics.counter("chokes_sent");
+    private final Metrics.Counter unchokesSent = metrics.counter("unchokes_sent");
+    private final Metrics.Counter chokesReceived = metrics.counter("chokes_received");
+    private final Metrics.Counter unchokesReceived = metrics.counter("unchokes_received");
+    private final Metrics.Histogram requestLatency = metrics.histogram("request_to_piece");
+    private final Metrics.Histogram diskWriteLatency = metrics.histogram("disk_write");
+    private final Metrics.Counter piecesCorrupt = metrics.counter("pieces_corrupt");
+    private final Metrics.Histogram verifyLatency = metrics.histogram("piece_verify");
 
     public final String FILE_PATH;
     public final int NUM_OF_PIECES;
+    public final int BLOCK_SIZE;
+    public final int NUM_OF_BLOCKS_PER_PIECE; // block index = piece index * NUM_OF_BLOCKS_PER_PIECE + block in piece
 
-    Peer(int peerId, List<PeerInfo> peerList) throws FileNotFoundException
+    /**
+     * @param peerId this peer ID
+     * @param peerList all peers, in the order of PeerInfo.cfg
+     * @param config settings of this peer
+     * @param dir working directory, which holds the log file and the peer_[peerId] directory
+     * @throws IOException
+     */
+    Peer(int peerId, List<PeerInfo> peerList, Config config, File dir) throws IOException
     {
         /* Initialize peer info */
         this.peerId = peerId;
         this.peerList = peerList;
+        this.config = config;
 
         for (PeerInfo peer : peerList)
         {
@@ -52,26 +211,30 @@ public class Peer
         }
 
         /* Initialize bitfield */
-        NUM_OF_PIECES = (int)Math.ceil(peerProcess.FileSize*1.0/ peerProcess.PieceSize);
-        bitfield = new byte[NUM_OF_PIECES];
+        NUM_OF_PIECES = (int)Math.ceil(config.FileSize*1.0/ config.PieceSize);
+        bitfield = new AtomicPieceBitSet(NUM_OF_PIECES);
+        downloading = new AtomicPieceBitSet(NUM_OF_PIECES);
+
+        /* A piece is requested as a whole if blocks are disabled or not smaller than a piece */
+        BLOCK_SIZE = (config.BlockSize > 0 && config.BlockSize < config.PieceSize) ?
+                config.BlockSize : config.PieceSize;
+        NUM_OF_BLOCKS_PER_PIECE = (config.PieceSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
         if (hasFile.get())
         {
-            for (int i = 0; i < NUM_OF_PIECES; i++)
-                bitfield[i] = 1;
-        }
-        else
-        {
-            for (int i = 0; i < NUM_OF_PIECES; i++)
-                bitfield[i] = 0;
+            bitfield.setAll();
+            numOfPieces.set(NUM_OF_PIECES);
+            numOfCompletedPieces.set(NUM_OF_PIECES);
+            fileComplete.countDown();
         }
 
         /* Initialize neighbor bitfield*/
         neighborBitfield = new HashMap<>(peerList.size() - 1);
+        neighborsComplete = new CountDownLatch(peerList.size() - 1);
         for (PeerInfo p : peerList)
             if (p.getPeerId() != peerId)
             {
-                neighborBitfield.put(p.getPeerId(), new boolean[NUM_OF_PIECES]);
+                neighborBitfield.put(p.getPeerId(), new AtomicPieceBitSet(NUM_OF_PIECES, neighborsComplete));
             }
 
         /* Initialize preferred neighbor */
@@ -89,27 +252,192 @@ public class Peer
         // Initialize optimistic unchoke
         optimistUnchoke = new AtomicInteger(-1);
 
-        // Initialize download rate
-        downloadRate = new HashMap<>(peerList.size() - 1);
+        // Initialize rate meters
+        downloadMeter = new HashMap<>(peerList.size() - 1);
+        uploadMeter = new HashMap<>(peerList.size() - 1);
         for (PeerInfo p : peerList)
         {
             if (p.getPeerId() != peerId)
-                downloadRate.put(p.getPeerId(), 0.0);
+            {
+                downloadMeter.put(p.getPeerId(), new RateMeter(config.RateWindow));
+                uploadMeter.put(p.getPeerId(), new RateMeter(config.RateWindow));
+            }
         }
 
-        // Set file path
-        FILE_PATH = "peer_" + peerId + "/" + peerProcess.FileName;
+        // Initialize round-trip time estimates
+        rttEstimator = new HashMap<>(peerList.size() - 1);
+        for (PeerInfo p : peerList)
+        {
+            if (p.getPeerId() != peerId)
+                rttEstimator.put(p.getPeerId(), new RttEstimator(config));
+        }
+
+        log = new Log(dir, peerId, config.LogFlush);
 
-        file = new RandomAccessFile(FILE_PATH, "rw");
+        // Set file path
+        File peerDir = new File(dir, "peer_" + peerId);
+        if (!peerDir.exists())
+            if (!peerDir.mkdir())
+                throw new IOException("Can't create peer directory");
+        FILE_PATH = new File(peerDir, config.FileName).getPath();
+
+        boolean fileExisted = new File(FILE_PATH).exists(); // the directory of the files of a multi-file content
+        store = PieceStore.open(FILE_PATH, config);
+        receiveBufferPool = new BufferPool(getPieceHeaderLength() + BLOCK_SIZE, config.ReceiveBuffers);
         requestTimedOutThread = new RequestTimedOutThread(this);
+        haveBatchThread = (config.HaveBatch > 0) ? new HaveBatchThread(this) : null;
+
+        // Pieces are checked against the manifest, which a seeder generates if it doesn't exist
+        manifestFile = new File(dir, config.FileName + ".sha256");
+        verifyPool = config.VerifyPieces ? new ForkJoinPool(Math.max(1, config.VerifyThreads)) : null;
+        if (verifyPool != null)
+            manifest = hasFile.get() ? loadOrGenerateManifest() : Manifest.read(manifestFile, config.FileSize,
+                    config.PieceSize);
+
+        // A leecher resumes from the pieces in its journal
+        journal = (config.Resume && !hasFile.get()) ?
+                new PieceJournal(FILE_PATH + ".journal", store, config, NUM_OF_PIECES, fileExisted) : null;
+        if (journal != null)
+            resume();
+
+        piecePicker = config.PiecePolicy.equals(Config.POLICY_RANDOM) ? null :
+                new PiecePicker(NUM_OF_PIECES, neighborBitfield.size(), bitfield.snapshot());
+
+        registerGauges();
+    }
+
+    /**
+     * Take the pieces of the journal as downloaded. The pieces of its last batch are verified again in parallel if
+     * there is a manifest, the others were synced to disk before the batch was written
+     * @throws IOException
+     */
+    private void resume() throws IOException
+    {
+        PieceBitSet restored = journal.getRestored();
+        int[] recent = journal.getLastBatch();
+
+        int numOfCorrupt = 0;
+        if (verifyPool != null && manifest != null && recent.length > 0)
+        {
+            int[] corrupt = verifyPool.submit(() -> IntStream.of(recent).parallel()
+                    .filter(idx -> !verifyQuietly(idx)).toArray()).join();
+            for (int idx : corrupt)
+                restored.clear(idx);
+            if (corrupt.length > 0)
+                journal.rewrite(restored);
+            numOfCorrupt = corrupt.length;
+        }
+
+        int n = restored.cardinality();
+        if (n == 0) return;
+
+        bitfield.or(restored);
+        numOfPieces.set(n);
+        numOfCompletedPieces.set(n);
+        if (n == NUM_OF_PIECES)
+        {
+            hasFile.set(true);
+            fileComplete.countDown();
+        }
+        log.println("Peer " + peerId + " resumed " + n + " of " + NUM_OF_PIECES + " pieces from its journal, "
+                + numOfCorrupt + " of the last " + recent.length + " failed verification");
+    }
+
+    private boolean verifyQuietly(int idx)
+    {
+        try
+        {
+            return manifest.verify(store, idx);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Register the metrics that are read from the state of the peer
+     */
+    private void registerGauges()
+    {
+        metrics.gauge("pieces_have", bitfield::cardinality);
+        metrics.gauge("pieces_downloading", downloading::cardinality);
+        metrics.gauge("connections", () -> {
+            lock_Connections.readLock().lock();
+            try
+            {
+                return connections.size();
+            } finally
+            {
+                lock_Connections.readLock().unlock();
+            }
+        });
+        metrics.gauge("seed_queue_depth", () -> {
+            lock_Connections.readLock().lock();
+            try
+            {
+                long depth = 0;
+                for (NeighborConnection p : connections)
+                    depth += p.getSeedQueueSize();
+                return depth;
+            } finally
+            {
+                lock_Connections.readLock().unlock();
+            }
+        });
+        metrics.gauge("log_queue_depth", log::getQueueSize);
+        metrics.gauge("requests_outstanding", requestTimedOutThread::getNumOfRequests);
+        metrics.gauge("messages_sent", writeStats::getMessages);
+        metrics.gauge("socket_writes", writeStats::getWrites);
+        metrics.gauge("bytes_written", writeStats::getBytes);
+        metrics.gauge("receive_buffer_hits", receiveBufferPool::getHits);
+        metrics.gauge("receive_buffer_misses", receiveBufferPool::getMisses);
+        metrics.gauge("receive_buffer_drops", receiveBufferPool::getDrops);
+        metrics.gauge("receive_buffer_occupancy", receiveBufferPool::getOccupancy);
+        metrics.gauge("receive_buffer_capacity", receiveBufferPool::getCapacity);
+        if (verifyPool != null)
+            metrics.gauge("verify_queue_depth", verifyPool::getQueuedSubmissionCount);
+
+        for (int id : downloadMeter.keySet())
+        {
+            RateMeter in = downloadMeter.get(id);
+            RateMeter out = uploadMeter.get(id);
+            RttEstimator rtt = rttEstimator.get(id);
+            metrics.gauge("neighbor_" + id + "_bytes_in", in::getTotal);
+            metrics.gauge("neighbor_" + id + "_bytes_out", out::getTotal);
+            metrics.gauge("neighbor_" + id + "_rate_in", () -> (long) in.getRate());
+            metrics.gauge("neighbor_" + id + "_rate_out", () -> (long) out.getRate());
+            metrics.gauge("neighbor_" + id + "_request_timeout_ms", rtt::getTimeout);
+            metrics.gauge("neighbor_" + id + "_srtt_ms", () -> (long) rtt.getSrtt());
+            metrics.gauge("neighbor_" + id + "_rttvar_ms", () -> (long) rtt.getRttvar());
+            metrics.gauge("neighbor_" + id + "_rtt_samples", rtt::getSamples);
+            metrics.gauge("neighbor_" + id + "_request_timeouts", rtt::getTimeouts);
+        }
     }
 
     void start() throws InterruptedException, IOException
     {
-        ServerListener serverListener = new ServerListener(serverPort, this);
-        new Thread(serverListener).start();
+        boolean useNio = config.NetworkEngine.equals(Config.ENGINE_NIO);
+        ServerListener serverListener = null;
+        NioEngine nioEngine = null;
+
+        metrics.start(peerId, config.MetricsPort);
+
+        if (useNio)
+        {
+            nioEngine = new NioEngine(this, serverPort, config.NumOfIoThreads, config.NumOfTaskThreads);
+            nioEngine.start();
+        }
+        else
+        {
+            serverListener = new ServerListener(serverPort, this);
+            Threads.start(serverListener, "ServerListener");
+        }
+        listening.countDown();
 
         requestTimedOutThread.start(); // start RequestTimedOutThread
+        if (haveBatchThread != null) haveBatchThread.start();
+        if (journal != null) journal.start();
 
         // Make connection to other peer
         for (PeerInfo target : peerList)
@@ -117,13 +445,20 @@ public class Peer
             if (target.getPeerId() == peerId) break;
             else
             {
-                Socket connectionSocket = makeConnection(target);
-                if (connectionSocket == null) continue;
+                SocketChannel connectionChannel = makeConnection(target);
+                if (connectionChannel == null) continue;
 
-                PeerThread peerThread = new PeerThread(this, target, connectionSocket, true);
-                peerThread.start();
+                if (useNio)
+                {
+                    addConnection(nioEngine.addConnection(target, connectionChannel));
+                }
+                else
+                {
+                    PeerThread peerThread = new PeerThread(this, target, connectionChannel.socket(), true);
+                    peerThread.start();
 
-                addPeerThread(peerThread);
+                    addConnection(peerThread);
+                }
             }
         }
 
@@ -134,7 +469,7 @@ public class Peer
         if (!hasFile.get())
         {
             waitUntilBitfieldFull();
-            Log.println("Peer " + this.peerId + " has downloaded the complete file");
+            log.println("Peer " + this.peerId + " has downloaded the complete file");
             hasFile.set(true);
         }
 
@@ -142,14 +477,24 @@ public class Peer
 
         // close all sockets and exit threads
         chokeThread.exit();
-        serverListener.exit();
-        lock_PeerThreads.writeLock().lock();
-        for (PeerThread p : peerThreads) p.exit();
-        peerThreads.clear();
-        lock_PeerThreads.writeLock().unlock();
+        if (serverListener != null) serverListener.exit();
+        lock_Connections.writeLock().lock();
+        for (NeighborConnection p : connections) p.exit();
+        connections.clear();
+        lock_Connections.writeLock().unlock();
+        if (nioEngine != null) nioEngine.exit();
         requestTimedOutThread.exit();
+        if (verifyPool != null)
+        {
+            verifyPool.shutdown();
+            verifyPool.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        if (haveBatchThread != null) haveBatchThread.exit();
+        if (journal != null) journal.exit();
 
-        file.close();
+        store.close();
+        metrics.exit();
+        log.exit();
     }
 
     /**
@@ -158,14 +503,7 @@ public class Peer
      */
     private void waitUntilBitfieldFull() throws InterruptedException
     {
-        for (int i = 0; i < bitfield.length; i++)
-        {
-            synchronized (bitfield)
-            {
-                while (bitfield[i] != 1)
-                    bitfield.wait();
-            }
-        }
+        fileComplete.await();
     }
 
     /**
@@ -174,17 +512,18 @@ public class Peer
      */
     private void waitUntilNeighborBitfieldFull() throws InterruptedException
     {
-        synchronized (neighborBitfield)
-        {
-            for (Map.Entry<Integer, boolean[]> item : neighborBitfield.entrySet())
-            {
-                for (int i = 0; i < item.getValue().length; i++)
-                {
-                    while (!item.getValue()[i])
-                        neighborBitfield.wait();
-                }
-            }
-        }
+        neighborsComplete.await();
+    }
+
+    /**
+     * Wait until neighbors can connect to this peer, after start() is called
+     * @param timeoutMs maximum time to wait, in milliseconds
+     * @return false if the peer does not listen yet
+     * @throws InterruptedException
+     */
+    boolean awaitListening(long timeoutMs) throws InterruptedException
+    {
+        return listening.await(timeoutMs, TimeUnit.MILLISECONDS);
     }
 
     int getPeerId()
@@ -192,6 +531,16 @@ public class Peer
         return peerId;
     }
 
+    Config getConfig()
+    {
+        return config;
+    }
+
+    Log getLog()
+    {
+        return log;
+    }
+
     boolean getHasFile()
     {
         return hasFile.get();
@@ -204,7 +553,7 @@ public class Peer
     public void setOptimistUnchoke(int peerId)
     {
 //        System.out.println("Optimistic unchoke " + peerId);
-        Log.println("Peer " + this.peerId + " has the optimistically unchoked neighbor " + peerId);
+        log.println("Peer {} has the optimistically unchoked neighbor {}", this.peerId, peerId);
 
         // Choke the previous one if it is not preferred
         int prevId = optimistUnchoke.get();
@@ -273,29 +622,53 @@ public class Peer
     }
 
     /**
-     * Get download rate of a peer
+     * Get download rate of a peer over the last Config.RateWindow milliseconds
      * @param peerId peer ID
-     * @return download rate
+     * @return bytes per second
      */
     public double getDownloadRate(int peerId)
     {
-        synchronized (downloadRate.get(peerId))
-        {
-            return downloadRate.get(peerId);
-        }
+        return downloadMeter.get(peerId).getRate();
     }
 
     /**
-     * Set a value in download rate of a peer
+     * Get upload rate to a peer over the last Config.RateWindow milliseconds
      * @param peerId peer ID
-     * @param rate download rate
+     * @return bytes per second
      */
-    public void setDownloadRate(int peerId, Double rate)
+    public double getUploadRate(int peerId)
     {
-        synchronized (downloadRate.get(peerId))
-        {
-            downloadRate.put(peerId,rate);
-        }
+        return uploadMeter.get(peerId).getRate();
+    }
+
+    /**
+     * Count PIECE payload bytes received from a peer
+     * @param peerId peer ID
+     * @param length number of bytes
+     */
+    public void addDownloaded(int peerId, int length)
+    {
+        downloadMeter.get(peerId).add(length);
+    }
+
+    /**
+     * Count PIECE payload bytes sent to a peer
+     * @param peerId peer ID
+     * @param length number of bytes
+     */
+    public void addUploaded(int peerId, int length)
+    {
+        uploadMeter.get(peerId).add(length);
+        piecesServed.inc();
+    }
+
+    /**
+     * Count a CHOKE or UNCHOKE msg received
+     * @param isChoke true if CHOKE
+     */
+    public void countChokeReceived(boolean isChoke)
+    {
+        (isChoke ? chokesReceived : unchokesReceived).inc();
     }
 
     /**
@@ -305,103 +678,517 @@ public class Peer
      */
     public boolean checkPiece(int idx)
     {
-        synchronized (bitfield)
+        return bitfield.get(idx);
+    }
+
+    /**
+     * When a requested block is timed out
+     * @param neighborId peer ID of neighbor that the block was requested from
+     * @param blockIdx index of block
+     * @param requestedNanos System.nanoTime() when the block was requested
+     */
+    public void requestTimeoutHandle(int neighborId, int blockIdx, long requestedNanos)
+    {
+        rttEstimator.get(neighborId).onTimeout(requestedNanos);
+        requestTimeouts.inc();
+
+        boolean reset = releaseBlock(blockIdx);
+//        if (reset) log.println("Request timed out: " + blockIdx);
+
+        notifyTimeout(neighborId, blockIdx, reset);
+    }
+
+    /**
+     * Give back a requested block that will not be received, e.g. when the neighbor chokes us
+     * @param neighborId peer ID of neighbor that the block was requested from
+     * @param blockIdx index of block
+     */
+    public void cancelRequest(int neighborId, int blockIdx)
+    {
+        requestTimedOutThread.removeRequestingPiece(neighborId, blockIdx);
+
+        if (releaseBlock(blockIdx))
+            notifyTimeout(neighborId, blockIdx, true);
+    }
+
+    /**
+     * Mark a requested block as missing again, and the piece as well if none of its blocks is requested or received
+     * @param blockIdx index of block
+     * @return true if the block can be requested again, false if it was already received
+     */
+    private boolean releaseBlock(int blockIdx)
+    {
+        int idx = blockIdx / NUM_OF_BLOCKS_PER_PIECE;
+        int block = blockIdx % NUM_OF_BLOCKS_PER_PIECE;
+
+        PartialPiece partial = partialPieces.get(idx);
+        if (partial == null)
+            return false;
+
+        int result = partial.releaseBlock(block);
+        if (result == PartialPiece.PIECE_RELEASED)
         {
-            return bitfield[idx] == 1;
+            partialPieces.remove(idx, partial);
+            downloading.clear(idx);
+            if (piecePicker != null) piecePicker.setWanted(idx, true);
         }
+        return result != PartialPiece.NOT_REQUESTED;
     }
 
     /**
-     * When a requested piece is timed out
+     * Procedure for receiving a new block. The piece is complete once all of its blocks are written and it matches the
+     * manifest, which is checked on the verify pool
      * @param idx index of piece
+     * @param begin offset of the block in the piece
+     * @param neighborId peer id of neighbor that sent this block
+     * @param buffer data
+     * @param offset the start offset in the data
+     * @param length number of bytes to write
+     * @return index of the block, -1 if it is not a valid block
      */
-    public void requestTimeoutHandle(int idx)
+    public int handleRcvNewPiece(int idx, int begin, int neighborId, byte[] buffer, int offset, int length)
     {
-        boolean notify = false;
-        synchronized (bitfield)
+        if (idx < 0 || idx >= NUM_OF_PIECES || begin < 0 || begin % BLOCK_SIZE != 0)
+            return -1;
+
+        int block = begin / BLOCK_SIZE;
+        if (block >= getNumOfBlocks(idx) || length != getBlockLength(idx, block))
+            return -1;
+
+        int blockIdx = idx * NUM_OF_BLOCKS_PER_PIECE + block;
+        long rtt = requestTimedOutThread.answerRequestingPiece(neighborId, blockIdx); // stop monitoring
+        if (rtt >= 0)
         {
-            if (bitfield[idx] == 2) // if it is still being requested
+            rttEstimator.get(neighborId).addSample(rtt / 1e6);
+            requestLatency.record(rtt);
+        }
+
+        if (bitfield.get(idx))
+            return blockIdx;
+
+        PartialPiece partial;
+        int result;
+        do
+        {
+            partial = partialPieces.get(idx);
+            if (partial == null) // its requests were released, but the block arrives anyway
             {
-                bitfield[idx] = 0;
-                notify = true;
-//                Log.println("Request timed out: " + idx);
+                partial = claimPiece(idx);
+                if (partial == null) partial = partialPieces.get(idx);
+                if (partial == null) return blockIdx; // completed, or claimed but not ready yet: drop it
             }
+
+            result = partial.receiveBlock(block, neighborId);
+        } while (result < 0); // released meanwhile
+
+        if (result == 0) // duplicate
+        {
+            duplicateBlocks.inc();
+            return blockIdx;
+        }
+        blocksReceived.inc();
+
+        if (endgame) // the first copy wins, cancel the duplicate requests
+            notifyCancel(blockIdx, neighborId);
+
+        writeFile((long) idx * config.PieceSize + begin, buffer, offset, length);
+
+        if (!partial.blockWritten())
+            return blockIdx;
+
+        if (verifyPool != null)
+        {
+            PartialPiece written = partial;
+            verifyPool.execute(() -> verifyPiece(idx, written, neighborId));
         }
+        else
+            commitPiece(idx, partial, neighborId);
 
-        if (notify)
-            notifyTimeout(idx);
+        return blockIdx;
     }
 
     /**
-     * Procedure for receiving a new piece
+     * Check a written piece against the manifest, on the verify pool, then commit or reject it
      * @param idx index of piece
-     * @param neighborId peer id of neighbor that sent this piece
-     * @param buffer data
-     * @param offset the start offset in the data
-     * @param length number of bytes to write
+     * @param partial download progress of the piece
+     * @param neighborId peer id of neighbor that sent the last block
      */
-    public void handleRcvNewPiece(int idx, int neighborId, byte[] buffer, int offset, int length)
+    private void verifyPiece(int idx, PartialPiece partial, int neighborId)
     {
-        synchronized (bitfield)
+        long start = System.nanoTime();
+        boolean valid;
+        Manifest m = getManifest();
+        if (m == null) // the piece stays downloading until a neighbor sends the manifest
+        {
+            synchronized (waitingForManifest)
+            {
+                if (manifest == null)
+                {
+                    if (waitingForManifest.isEmpty())
+                        log.println("Peer " + peerId + " has no manifest yet, the downloaded pieces wait for it");
+                    waitingForManifest.add(() -> verifyPiece(idx, partial, neighborId));
+                    return;
+                }
+            }
+            m = manifest;
+        }
+
+        try
+        {
+            valid = m.verify(store, idx);
+        }
+        catch (IOException e) // my own disk failed, the senders are not to blame
         {
-            if (bitfield[idx] == 1)
-                return;
+            e.printStackTrace();
+            resetPiece(idx, partial);
+            log.println("Peer " + peerId + " couldn't read the piece " + idx + " back to verify it, it is requested"
+                    + " again");
+            notifyTimeout(-1, idx * NUM_OF_BLOCKS_PER_PIECE, true);
+            return;
+        }
+        verifyLatency.record(System.nanoTime() - start);
+
+        if (valid)
+            commitPiece(idx, partial, neighborId);
+        else
+            rejectPiece(idx, partial);
+    }
 
-            bitfield[idx] = 1;
-            bitfield.notifyAll();
-            Log.println("Peer " + peerId + " has downloaded the piece " + idx + " from "
-                    + neighborId + ". Now the number of pieces it has is " + Misc.countPieces(bitfield));
+    /**
+     * Add a complete piece to the bitfield and announce it
+     * @param idx index of piece
+     * @param partial download progress of the piece
+     * @param neighborId peer id of neighbor that sent the last block
+     */
+    private void commitPiece(int idx, PartialPiece partial, int neighborId)
+    {
+        // have the piece before it stops being downloaded, so that it can't be claimed again
+        bitfield.set(idx);
+        piecesReceived.inc();
+        int numOfPiecesNow = numOfPieces.incrementAndGet();
+        partialPieces.remove(idx, partial);
+        downloading.clear(idx);
+        log.println("Peer {} has downloaded the piece {} from {}. Now the number of pieces it has is {}",
+                peerId, idx, neighborId, numOfPiecesNow);
+
+        if (!rejectedFrom.isEmpty())
+            rejectedFrom.remove(idx);
+        if (journal != null)
+            journal.add(idx);
+
+        if (haveBatchThread != null)
+            haveBatchThread.add(idx);
+        else
+            announceNewPieces(new int[]{idx});
+    }
+
+    /**
+     * Reset a piece that failed verification to missing. The neighbors that sent it are not asked for it again while
+     * another neighbor has it
+     * @param idx index of piece
+     * @param partial download progress of the piece
+     */
+    private void rejectPiece(int idx, PartialPiece partial)
+    {
+        Set<Integer> sources = resetPiece(idx, partial);
+        piecesCorrupt.inc();
+        rejectedFrom.computeIfAbsent(idx, k -> ConcurrentHashMap.newKeySet()).addAll(sources);
+        log.println("Peer " + peerId + " received the piece " + idx + " from " + sources
+                + ", which doesn't match the manifest");
+
+        notifyTimeout(-1, idx * NUM_OF_BLOCKS_PER_PIECE, true);
+    }
+
+    /**
+     * Reset a written piece to missing so that it can be requested again
+     * @param idx index of piece
+     * @param partial download progress of the piece
+     * @return peer ids of the neighbors that sent its blocks
+     */
+    private Set<Integer> resetPiece(int idx, PartialPiece partial)
+    {
+        Set<Integer> sources = partial.release();
+        partialPieces.remove(idx, partial);
+        downloading.clear(idx);
+        if (piecePicker != null) piecePicker.setWanted(idx, true);
+        return sources;
+    }
+
+    /**
+     * Getter for the manifest, read again if it didn't exist yet, e.g. a seeder in the same directory is generating it
+     * @return the manifest, null if there is none
+     */
+    private Manifest getManifest()
+    {
+        Manifest m = manifest;
+        if (m != null)
+            return m;
+
+        synchronized (manifestFile)
+        {
+            try
+            {
+                if (manifest == null && (m = Manifest.read(manifestFile, config.FileSize, config.PieceSize)) != null)
+                    setManifest(m);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            return manifest;
         }
+    }
+
+    /**
+     * Getter for the payload of the MANIFEST msg
+     * @return the manifest, null if this peer doesn't verify pieces or has no manifest yet
+     */
+    byte[] getManifestPayload()
+    {
+        if (verifyPool == null) return null;
 
-        writeFile(idx, buffer, offset, length);
-        notifyNewPiece(idx);
+        byte[] payload = manifestPayload;
+        if (payload == null)
+        {
+            Manifest m = getManifest();
+            if (m != null)
+                manifestPayload = payload = m.toByteArray();
+        }
+        return payload;
     }
 
-    private synchronized void writeFile(int pieceIdx, byte[] buffer, int offset, int length)
+    /**
+     * A neighbor sent the manifest. If I don't have it, it is written next to Common.cfg and sent to my other neighbors
+     * @param neighborId peer ID of neighbor
+     * @param payload payload of the MANIFEST msg
+     */
+    void receiveManifest(int neighborId, byte[] payload)
     {
-        try
+        if (verifyPool == null || manifest != null) return;
+
+        Manifest m = Manifest.fromByteArray(payload, config.FileSize, config.PieceSize);
+        if (m == null)
         {
-            file.seek(pieceIdx * peerProcess.PieceSize);
-            file.write(buffer, offset, length);
+            log.println("Peer " + peerId + " received a manifest from " + neighborId + " which is for another file");
+            return;
         }
-        catch (IOException e)
+
+        synchronized (manifestFile)
         {
+            if (manifest != null) return;
             try
             {
-                file.close();
-            } catch (IOException ex)
+                m.write(manifestFile);
+            } catch (IOException e)
             {
-                ex.printStackTrace();
+                e.printStackTrace();
             }
+            setManifest(m);
+        }
+        log.println("Peer " + peerId + " received the manifest from " + neighborId);
+
+        byte[] own = getManifestPayload();
+        lock_Connections.readLock().lock();
+        for (NeighborConnection p : connections)
+            p.sendSeed(MsgPeerSeed.TYPE_MANIFEST, own);
+        lock_Connections.readLock().unlock();
+    }
+
+    /**
+     * Take a manifest and verify the pieces that waited for it, the caller holds the lock of manifestFile
+     * @param m the manifest
+     */
+    private void setManifest(Manifest m)
+    {
+        List<Runnable> waiting;
+        synchronized (waitingForManifest)
+        {
+            manifest = m;
+            waiting = new ArrayList<>(waitingForManifest);
+            waitingForManifest.clear();
         }
+        for (Runnable verification : waiting)
+            verifyPool.execute(verification);
     }
 
     /**
-     * Notify all PeerSeed of timeout
-     * @param idx piece index
+     * Read the manifest, or generate it from my file if it doesn't exist or is for another file
+     * @return the manifest
+     * @throws IOException
      */
-    private void notifyTimeout(int idx)
+    private Manifest loadOrGenerateManifest() throws IOException
     {
-        lock_PeerThreads.readLock().lock();
-        for (PeerThread p : peerThreads)
+        Manifest m = Manifest.read(manifestFile, config.FileSize, config.PieceSize);
+        if (m != null)
+            return m;
+
+        long start = System.nanoTime();
+        m = Manifest.generate(store, config.FileSize, config.PieceSize, verifyPool);
+        m.write(manifestFile);
+        log.println("Peer " + peerId + " generated the manifest of " + NUM_OF_PIECES + " pieces in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return m;
+    }
+
+    /**
+     * Claim a piece for downloading, a single CAS on the word of the piece in downloading
+     * @param idx index of piece
+     * @return the new partial piece, null if I have the piece or it is already claimed
+     */
+    private PartialPiece claimPiece(int idx)
+    {
+        if (bitfield.get(idx) || !downloading.trySet(idx))
+            return null;
+
+        if (bitfield.get(idx)) // completed between the two checks
+        {
+            downloading.clear(idx);
+            return null;
+        }
+
+        PartialPiece partial = new PartialPiece(getNumOfBlocks(idx));
+        partialPieces.put(idx, partial);
+        if (piecePicker != null) piecePicker.setWanted(idx, false);
+        return partial;
+    }
+
+    private void writeFile(long position, byte[] buffer, int offset, int length)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            store.write(position, buffer, offset, length);
+            diskWriteLatency.record(System.nanoTime() - start);
+        }
+        catch (IOException e)
         {
-            p.sendSeed(MsgPeerSeed.TYPE_TIMEOUT, idx);
+            e.printStackTrace();
         }
-        lock_PeerThreads.readLock().unlock();
     }
 
     /**
-     * Notify all PeerSeed of having a new piece
+     * Length of a piece, the last one may be shorter
+     * @param idx index of piece
+     * @return number of bytes
+     */
+    public int getPieceLength(int idx)
+    {
+        if (idx == NUM_OF_PIECES - 1)
+            return (int) (config.FileSize - (long) (NUM_OF_PIECES - 1) * config.PieceSize);
+        return config.PieceSize;
+    }
+
+    /**
+     * Number of blocks of a piece, the last piece may have less
+     * @param idx index of piece
+     * @return number of blocks
+     */
+    public int getNumOfBlocks(int idx)
+    {
+        return (getPieceLength(idx) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Length of a block, the last block of a piece may be shorter
+     * @param idx index of piece
+     * @param block index of block in the piece
+     * @return number of bytes
+     */
+    public int getBlockLength(int idx, int block)
+    {
+        return Math.min(BLOCK_SIZE, getPieceLength(idx) - block * BLOCK_SIZE);
+    }
+
+    /**
+     * Check if pieces are requested block by block. A block REQUEST carries piece index, begin and length, and a block
+     * PIECE carries piece index and begin before the data. Otherwise both only carry the piece index.
+     * @return true if pieces are split into blocks
+     */
+    public boolean isBlockMode()
+    {
+        return NUM_OF_BLOCKS_PER_PIECE > 1;
+    }
+
+    /**
+     * Length of the PIECE payload before the data
+     * @return 8 in block mode, 4 otherwise
+     */
+    public int getPieceHeaderLength()
+    {
+        return isBlockMode() ? 8 : 4;
+    }
+
+    /**
+     * Getter for the pool of buffers receiving PIECE payloads
+     * @return buffer pool
+     */
+    BufferPool getReceiveBufferPool()
+    {
+        return receiveBufferPool;
+    }
+
+    /**
+     * Getter for the round-trip time estimate of a neighbor, which gives its request timeout
+     * @param neighborId peer ID of neighbor
+     * @return estimate
+     */
+    public RttEstimator getRttEstimator(int neighborId)
+    {
+        return rttEstimator.get(neighborId);
+    }
+
+    /**
+     * Getter for the counters of the outbound path of all connections
+     * @return write counters
+     */
+    WriteStats getWriteStats()
+    {
+        return writeStats;
+    }
+
+    /**
+     * Getter for the store of the shared file
+     * @return piece store
+     */
+    PieceStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Notify PeerSeed of timeout. The PeerSeed that requested the piece always removes it from its request window, the
+     * others are notified only if the piece can be requested again
+     * @param neighborId peer ID of neighbor that the piece was requested from
      * @param idx piece index
+     * @param reset true if the piece is available for requesting again
      */
-    private void notifyNewPiece(int idx)
+    private void notifyTimeout(int neighborId, int idx, boolean reset)
     {
-        lock_PeerThreads.readLock().lock();
-        for (PeerThread p : peerThreads)
+        lock_Connections.readLock().lock();
+        for (NeighborConnection p : connections)
         {
-            p.sendSeed(MsgPeerSeed.TYPE_NEW_PIECE, idx);
+            if (reset || (p.getTarget() != null && p.getTarget().getPeerId() == neighborId))
+                p.sendSeed(MsgPeerSeed.TYPE_TIMEOUT, idx);
         }
-        lock_PeerThreads.readLock().unlock();
+        lock_Connections.readLock().unlock();
+    }
+
+    /**
+     * Notify all PeerSeed of having new pieces, then count them as completed
+     * @param pieces piece indexes
+     */
+    void announceNewPieces(int[] pieces)
+    {
+        lock_Connections.readLock().lock();
+        for (NeighborConnection p : connections)
+        {
+            p.sendSeed(MsgPeerSeed.TYPE_NEW_PIECE, pieces);
+        }
+        lock_Connections.readLock().unlock();
+
+        // only count the pieces once they are written and announced, so that exiting doesn't lose them
+        if (numOfCompletedPieces.addAndGet(pieces.length) == NUM_OF_PIECES)
+            fileComplete.countDown();
     }
 
     /**
@@ -411,8 +1198,10 @@ public class Peer
      */
     private void notifyChokeUnchoke(int neighborId, byte eventType)
     {
-        lock_PeerThreads.readLock().lock();
-        for (PeerThread p : peerThreads)
+        (eventType == MsgPeerSeed.TYPE_CHOKE ? chokesSent : unchokesSent).inc();
+
+        lock_Connections.readLock().lock();
+        for (NeighborConnection p : connections)
         {
             if (p.getTarget().getPeerId() == neighborId)
             {
@@ -420,19 +1209,16 @@ public class Peer
                 break;
             }
         }
-        lock_PeerThreads.readLock().unlock();
+        lock_Connections.readLock().unlock();
     }
 
     /**
      * Getter for bitfield
      * @return a copy of current bitfield
      */
-    public byte[] getBitfield()
+    public PieceBitSet getBitfield()
     {
-        synchronized (bitfield)
-        {
-            return bitfield.clone();
-        }
+        return bitfield.snapshot();
     }
 
     /**
@@ -440,12 +1226,20 @@ public class Peer
      * @param neighborId neighbor id
      * @return copy of the neighbor's bitfield
      */
-    public boolean[] getNeighborBitfield(int neighborId)
+    public PieceBitSet getNeighborBitfield(int neighborId)
     {
-        synchronized (neighborBitfield)
-        {
-            return neighborBitfield.get(neighborId).clone();
-        }
+        return neighborBitfield.get(neighborId).snapshot();
+    }
+
+    /**
+     * Check if a neighbor has a piece that is not in a bitfield, without copying the neighbor's bitfield
+     * @param neighborId neighbor id
+     * @param bf bitfield, e.g. the pieces I have
+     * @return true if the neighbor has a piece that bf lacks
+     */
+    public boolean neighborHasAnyNotIn(int neighborId, PieceBitSet bf)
+    {
+        return neighborBitfield.get(neighborId).hasAnyNotIn(bf);
     }
 
 
@@ -455,59 +1249,168 @@ public class Peer
     }
 
     /**
-     * Update neighbor's bitfield
+     * Update neighbor's bitfield. A neighbor never loses pieces, so the bitfield is merged into what is known
      * @param neighborId peer ID of neighbor
      * @param bf bitfield
      */
-    public void setNeighborBitfield(int neighborId, boolean[] bf)
+    public void setNeighborBitfield(int neighborId, PieceBitSet bf)
     {
-        synchronized (neighborBitfield)
-        {
-            neighborBitfield.put(neighborId, bf);
-            neighborBitfield.notifyAll();
-        }
+        PieceBitSet added = neighborBitfield.get(neighborId).or(bf);
+        if (piecePicker != null) piecePicker.incAvailability(added);
     }
 
     /**
-     * Randomly select a piece that neighbor has but I don't and report whether I should still be interested in this
-     * neighbor
+     * Select a block that neighbor has but I don't. Missing blocks of the pieces being downloaded come first, otherwise
+     * a new piece is selected by Config.PiecePolicy: the rarest one, or a random one. If there is none, a block
+     * requested from another neighbor may be selected in endgame mode
      * @param neighborId peer ID of neighbor
      * @return
      * <ul>
-     *     <li>The piece index</li>
+     *     <li>The block index, which is the piece index if pieces are not split into blocks</li>
      *     <li>-1 if can't select</li>
      * </ul>
      */
-    public int selectNewPieceFromNeighbor(int neighborId)
+    public int selectNewBlockFromNeighbor(int neighborId)
     {
-        LinkedList<Integer> hasIdx = new LinkedList<>();
         Random r = new Random();
+        PieceBitSet candidates = getNeighborBitfield(neighborId);
+        if (!rejectedFrom.isEmpty())
+            excludeRejected(neighborId, candidates);
+
+        int blockIdx = -1;
+
+        // finish the pieces being downloaded first
+        for (Map.Entry<Integer, PartialPiece> item : partialPieces.entrySet())
+        {
+            if (!candidates.get(item.getKey())) continue;
 
-        synchronized (neighborBitfield)
+            int b = item.getValue().requestMissingBlock();
+            if (b >= 0)
+            {
+                blockIdx = item.getKey() * NUM_OF_BLOCKS_PER_PIECE + b;
+                break;
+            }
+        }
+
+        // otherwise claim a new piece, another thread may claim it first
+        for (int attempt = 0; blockIdx < 0 && attempt < MAX_CLAIM_ATTEMPTS; attempt++)
         {
-            final boolean[] bf = neighborBitfield.get(neighborId);
-            for (int i = 0; i < bf.length; i++)
-                if (bf[i]) hasIdx.add(i); //save pieces index of neighbor
+            int idx;
+            if (piecePicker != null)
+            {
+                idx = piecePicker.takeRarest(candidates);
+            }
+            else
+            {
+                // pieces neighbor has that I neither have nor download
+                PieceBitSet missing = candidates.copy().andNot(bitfield.snapshot()).andNot(downloading.snapshot());
+
+                // Select a random one
+                int numOfCandidates = missing.cardinality();
+                idx = (numOfCandidates == 0) ? -1 : missing.nthSetBit(r.nextInt(numOfCandidates));
+            }
+
+            if (idx < 0) break;
+
+            PartialPiece partial = claimPiece(idx);
+            int b = (partial == null) ? -1 : partial.requestMissingBlock();
+            if (b >= 0)
+                blockIdx = idx * NUM_OF_BLOCKS_PER_PIECE + b;
+            else
+                candidates.clear(idx);
         }
 
-        ArrayList<Integer> sameIdx = new ArrayList<>(hasIdx.size());
+        if (blockIdx < 0)
+            blockIdx = selectEndgameBlock(neighborId, candidates);
+        if (blockIdx < 0)
+            return -1;
+
+        // monitoring timeout
+        requestTimedOutThread.addRequestingPiece(neighborId, blockIdx, rttEstimator.get(neighborId).getTimeout());
+        return blockIdx;
+    }
 
-        int idx = -1;
-        synchronized (bitfield)
+    /**
+     * Remove the pieces that neighbor sent corrupted, unless no other neighbor has them
+     * @param neighborId peer ID of neighbor
+     * @param candidates pieces of the neighbor
+     */
+    private void excludeRejected(int neighborId, PieceBitSet candidates)
+    {
+        for (Map.Entry<Integer, Set<Integer>> item : rejectedFrom.entrySet())
         {
-            // check for valid pieces index
-            for (int i : hasIdx)
-                if (bitfield[i] == 0) sameIdx.add(i);
+            Set<Integer> rejected = item.getValue();
+            if (!rejected.contains(neighborId)) continue;
 
-            if (sameIdx.size() == 0) return -1;
+            for (Map.Entry<Integer, AtomicPieceBitSet> neighbor : neighborBitfield.entrySet())
+                if (!rejected.contains(neighbor.getKey()) && neighbor.getValue().get(item.getKey()))
+                {
+                    candidates.clear(item.getKey());
+                    break;
+                }
+        }
+    }
 
-            // Select a random one
-            idx = sameIdx.get(r.nextInt(sameIdx.size()));
-            bitfield[idx] = 2;
+    /**
+     * In endgame mode, select a block that is already requested from another neighbor but not from this one. Endgame
+     * mode starts once every piece I don't have is being downloaded
+     * @param neighborId peer ID of neighbor
+     * @param neighborBitfield bitfield of the neighbor
+     * @return block index, -1 if can't select
+     */
+    private int selectEndgameBlock(int neighborId, PieceBitSet neighborBitfield)
+    {
+        if (!endgame)
+        {
+            // the counts are a quick filter, a committed piece is briefly in both sets
+            if (!config.Endgame || partialPieces.isEmpty()
+                    || bitfield.cardinality() + downloading.cardinality() < NUM_OF_PIECES
+                    || !downloading.isFullWith(bitfield))
+                return -1;
+
+            endgame = true;
+            log.println("Peer {} enters endgame mode with {} pieces left", peerId, partialPieces.size());
+        }
+
+        for (Map.Entry<Integer, PartialPiece> item : partialPieces.entrySet())
+        {
+            if (!neighborBitfield.get(item.getKey())) continue;
+
+            PartialPiece partial = item.getValue();
+            for (int b = 0; b < partial.blocks.length; b++)
+            {
+                int blockIdx = item.getKey() * NUM_OF_BLOCKS_PER_PIECE + b;
+                if (partial.isBlockRequested(b) && !requestTimedOutThread.isRequesting(neighborId, blockIdx))
+                    return blockIdx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tell the PeerSeed of every other neighbor that a block is received, so that they cancel their duplicate requests
+     * @param blockIdx index of block
+     * @param neighborId peer ID of neighbor that sent the block
+     */
+    private void notifyCancel(int blockIdx, int neighborId)
+    {
+        lock_Connections.readLock().lock();
+        for (NeighborConnection p : connections)
+        {
+            if (p.getTarget() != null && p.getTarget().getPeerId() != neighborId)
+                p.sendSeed(MsgPeerSeed.TYPE_CANCEL, blockIdx);
         }
+        lock_Connections.readLock().unlock();
+    }
 
-        requestTimedOutThread.addRequestingPiece(idx); // monitoring timeout
-        return idx;
+    /**
+     * A duplicate request is cancelled, stop monitoring it
+     * @param neighborId peer ID of neighbor that the block was requested from
+     * @param blockIdx index of block
+     */
+    public void cancelDuplicateRequest(int neighborId, int blockIdx)
+    {
+        requestTimedOutThread.removeRequestingPiece(neighborId, blockIdx);
     }
 
     /**
@@ -517,11 +1420,8 @@ public class Peer
      */
     public void setNeighborBitfield(int neighborId, int index)
     {
-        synchronized (neighborBitfield)
-        {
-            neighborBitfield.get(neighborId)[index] = true;
-            neighborBitfield.notifyAll();
-        }
+        if (neighborBitfield.get(neighborId).trySet(index) && piecePicker != null)
+            piecePicker.incAvailability(index);
     }
 
     /**
@@ -531,27 +1431,27 @@ public class Peer
     {
         for (int i : neighborBitfield.keySet())
         {
-            System.out.println("key: " + i + " value: " + Arrays.toString(neighborBitfield.get(i)));
+            System.out.println("key: " + i + " value: " + neighborBitfield.get(i));
         }
     }
 
     /**
      * Make TCP connection
      * @param target neighbor PeerInfo
-     * @return socket if successful, null otherwise
+     * @return channel of the socket if successful, null otherwise
      */
-    private Socket makeConnection(PeerInfo target)
+    private SocketChannel makeConnection(PeerInfo target)
     {
         try
         {
 //            System.out.println("Get: Make connection to " + target.getPeerId());
-            Log.println("Peer " + peerId + " makes a connection to Peer " + target.getPeerId());
+            log.println("Peer " + peerId + " makes a connection to Peer " + target.getPeerId());
 
             // make connection to target
-            Socket socket = new Socket(target.getHostname(), target.getPort());
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(target.getHostname(), target.getPort()));
 //            System.out.println("Get: Connected to " + target.getPeerId() + " in port " + target.getPort());
 
-            return socket;
+            return channel;
         }
         catch (ConnectException e)
         {
@@ -570,13 +1470,13 @@ public class Peer
     }
 
     /**
-     * Add a PeerThread object to list of PeerThreads
-     * @param pt PeerThread object
+     * Add a connection to list of connections
+     * @param conn PeerThread or NioConnection object
      */
-    public void addPeerThread(PeerThread pt)
+    public void addConnection(NeighborConnection conn)
     {
-        lock_PeerThreads.writeLock().lock();
-        peerThreads.add(pt);
-        lock_PeerThreads.writeLock().unlock();
+        lock_Connections.writeLock().lock();
+        connections.add(conn);
+        lock_Connections.writeLock().unlock();
     }
 }
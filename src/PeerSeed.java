@@ -1,35 +1,42 @@
 import java.io.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 
 public class PeerSeed implements Runnable
 {
     private final Peer thisPeer;
-    private final PeerThread peerThread;
+    private final NeighborConnection peerThread;
 
-    private final RandomAccessFile file;
+    private final PieceStore store;
     private final BlockingQueue<MsgPeerSeed> toSeed;
 
-    private final Thread thread;
-    private boolean requesting = false;
+    private volatile Thread thread;
     private boolean isUnchoke = false;
+    private boolean manifestSent = false;
+
+    /**
+     * Blocks requested from the neighbor and not received yet, at most Config.RequestWindow of them
+     */
+    private final Set<Integer> outstanding = new LinkedHashSet<>();
 
     /**
      * Keep a local bitfield and update whenever it has to send the HAVE message.
      * The purpose of this variable is to make sure that when checkNotInterested() is executed, it reads the exact current
      * state of bitfield
      */
-    private final byte[] localBitfield;
+    private final PieceBitSet localBitfield;
 
-    PeerSeed(Peer thisPeer, PeerThread peerThread, BlockingQueue<MsgPeerSeed> toSeed) throws IOException
+    PeerSeed(Peer thisPeer, NeighborConnection peerThread, BlockingQueue<MsgPeerSeed> toSeed)
     {
         this.thisPeer = thisPeer;
         this.peerThread = peerThread;
         this.toSeed = toSeed;
         localBitfield = thisPeer.getBitfield();
 
-        file = new RandomAccessFile(thisPeer.FILE_PATH, "rw");
-        thread = new Thread(this);
+        store = thisPeer.getStore();
     }
 
     /**
@@ -37,7 +44,7 @@ public class PeerSeed implements Runnable
      */
     public void start()
     {
-        thread.start();
+        thread = Threads.start(this, "PeerSeed-" + peerThread.getTarget().getPeerId());
     }
 
     @Override
@@ -45,97 +52,133 @@ public class PeerSeed implements Runnable
     {
         try
         {
-            //send bitfield
-            byte[] bitfieldMsg = makeBitfieldMsg(thisPeer.getBitfield());
-            peerThread.sendMessage(new Message(Message.TYPE_BITFIELD, bitfieldMsg));
+            sendBitfield();
 
             //wait for new events
             while (true)
             {
-                MsgPeerSeed msg = toSeed.take();
-
-                switch (msg.getEventType())
-                {
-                    case MsgPeerSeed.TYPE_MSG:
-                        Message rcvMsg = (Message)msg.getContent();
-                        processReceivedMessage(rcvMsg);
-                        break;
-
-                    case MsgPeerSeed.TYPE_NEW_PIECE:
-                        sendHave((int)msg.getContent());
-                        if (checkNotInterested())
-                            peerThread.sendMessage(new Message(Message.TYPE_NOT_INTERESTED, null));
-                        break;
-
-                    case MsgPeerSeed.TYPE_UNCHOKE:
-                        peerThread.sendMessage(new Message(Message.TYPE_UNCHOKE, null));
-                        break;
-
-                    case MsgPeerSeed.TYPE_CHOKE:
-                        peerThread.sendMessage(new Message(Message.TYPE_CHOKE, null));
-                        break;
-
-                    case MsgPeerSeed.TYPE_TIMEOUT:
-                        if (!requesting && isUnchoke)
-                            sendRequest();
-                        break;
-
-                    case MsgPeerSeed.TYPE_REQUEST:
-                        sendRequest();
-                        break;
-
-                    case MsgPeerSeed.TYPE_EXIT:
-                        return;
-                }
+                if (!handleEvent(toSeed.take()))
+                    return;
             }
 
         } catch (IOException | InterruptedException e)
         {
             e.printStackTrace();
-
-        } finally
-        {
-            try
-            {
-                file.close();
-            } catch (IOException e1)
-            {
-                e1.printStackTrace();
-                System.err.println("Seed: Cannot close file");
-            }
         }
     }
 
     /**
-     * Send HAVE message
-     * @param idx index of piece
+     * Send BITFIELD msg, the first message after handshake
      */
-    private void sendHave(int idx)
+    void sendBitfield()
     {
-        localBitfield[idx] = 1;
-        /* send message */
-        byte[] payload = Misc.intToByteArray(idx);
-//        Log.println("Sending HAVE " + idx + " to " + peerThread.getTarget().getPeerId());
-        peerThread.sendMessage(new Message(Message.TYPE_HAVE, payload));
+        byte[] bitfieldMsg = thisPeer.getBitfield().toByteArray();
+        peerThread.sendMessage(new Message(Message.TYPE_BITFIELD, bitfieldMsg));
+        sendManifest(thisPeer.getManifestPayload());
     }
 
     /**
-     * Check whether or not to send 'not interested' to the target
-     * @return true if should send not interested, false otherwise
+     * Send the manifest once, if the neighbor supports MANIFEST msg
+     * @param payload the manifest, null if this peer doesn't have it
      */
-    private boolean checkNotInterested()
+    private void sendManifest(byte[] payload)
     {
-        boolean[] neighborBitfield = thisPeer.getNeighborBitfield(peerThread.getTarget().getPeerId());
+        if (payload == null || manifestSent || !peerThread.isManifestSupported()) return;
 
-        for (int i = 0; i < localBitfield.length; i++)
+        manifestSent = true;
+        peerThread.sendMessage(new Message(Message.TYPE_MANIFEST, payload));
+    }
+
+    /**
+     * Handle an event sent to this PeerSeed. Called by the own thread of PeerSeed, or directly by the networking engine
+     * when PeerSeed is not started as a thread
+     * @param msg the event
+     * @return false if PeerSeed should exit, true otherwise
+     * @throws IOException
+     */
+    boolean handleEvent(MsgPeerSeed msg) throws IOException
+    {
+        switch (msg.getEventType())
         {
-            if (localBitfield[i] != 1 && neighborBitfield[i])
+            case MsgPeerSeed.TYPE_MSG:
+                Message rcvMsg = (Message)msg.getContent();
+                processReceivedMessage(rcvMsg);
+                break;
+
+            case MsgPeerSeed.TYPE_NEW_PIECE:
+                sendHave((int[])msg.getContent());
+                if (checkNotInterested())
+                    peerThread.sendMessage(new Message(Message.TYPE_NOT_INTERESTED, null));
+                break;
+
+            case MsgPeerSeed.TYPE_UNCHOKE:
+                peerThread.sendMessage(new Message(Message.TYPE_UNCHOKE, null));
+                break;
+
+            case MsgPeerSeed.TYPE_CHOKE:
+                peerThread.sendMessage(new Message(Message.TYPE_CHOKE, null));
+                break;
+
+            case MsgPeerSeed.TYPE_TIMEOUT: // a block is timed out or cancelled, it can be requested again
+            case MsgPeerSeed.TYPE_REQUEST: // a requested block is received
+                outstanding.remove((Integer)msg.getContent());
+                sendRequest();
+                break;
+
+            case MsgPeerSeed.TYPE_CANCEL: // a duplicate request is answered by another neighbor
+                int blockIdx = (int)msg.getContent();
+                if (outstanding.remove(blockIdx))
+                {
+                    peerThread.sendMessage(new Message(Message.TYPE_CANCEL, makeRequestPayload(blockIdx)));
+                    thisPeer.cancelDuplicateRequest(peerThread.getTarget().getPeerId(), blockIdx);
+                    sendRequest();
+                }
+                break;
+
+            case MsgPeerSeed.TYPE_MANIFEST:
+                sendManifest((byte[])msg.getContent());
+                break;
+
+            case MsgPeerSeed.TYPE_EXIT:
                 return false;
         }
 
         return true;
     }
 
+    /**
+     * Send a HAVE_SET message if the neighbor supports it, otherwise a HAVE message per piece
+     * @param pieces indexes of pieces
+     */
+    private void sendHave(int[] pieces)
+    {
+        for (int idx : pieces)
+            localBitfield.set(idx);
+
+        /* send message */
+        if (pieces.length > 1 && peerThread.isHaveSetSupported())
+        {
+            peerThread.sendMessage(new Message(Message.TYPE_HAVE_SET, HaveSet.encode(pieces)));
+            return;
+        }
+
+        for (int idx : pieces)
+        {
+            byte[] payload = Misc.intToByteArray(idx);
+//            thisPeer.getLog().println("Sending HAVE " + idx + " to " + peerThread.getTarget().getPeerId());
+            peerThread.sendMessage(new Message(Message.TYPE_HAVE, payload));
+        }
+    }
+
+    /**
+     * Check whether or not to send 'not interested' to the target
+     * @return true if should send not interested, false otherwise
+     */
+    private boolean checkNotInterested()
+    {
+        return !thisPeer.neighborHasAnyNotIn(peerThread.getTarget().getPeerId(), localBitfield);
+    }
+
     /**
      * Process message
      * @param rcvMsg Message object of the received msg
@@ -146,41 +189,44 @@ public class PeerSeed implements Runnable
         switch (rcvMsg.getType())
         {
             case Message.TYPE_REQUEST:
+                ByteBuffer request = ByteBuffer.wrap(rcvMsg.getPayload());
+                int pieceIdx = request.getInt();
+//                System.out.println("Seed: Piece requested: " + pieceIdx);
+                boolean block = request.remaining() >= 8; // a block: begin and length
+                int begin = block ? request.getInt() : 0;
+                if (peerThread.takeCancelledRequest(pieceIdx, begin)) return; // cancelled while waiting
+
                 if (!thisPeer.checkPreferredNeighbor(peerThread.getTarget().getPeerId())
                         && thisPeer.getOptimistUnchoke() != peerThread.getTarget().getPeerId()) return;
+                if (pieceIdx < 0 || pieceIdx >= thisPeer.NUM_OF_PIECES) return;
 
-                int pieceIdx = Misc.byteArrayToInt(rcvMsg.getPayload());
-//                System.out.println("Seed: Piece requested: " + pieceIdx);
-                sendPiece(pieceIdx);
+                int length = block ? request.getInt() : thisPeer.getPieceLength(pieceIdx);
+
+                sendPiece(pieceIdx, begin, length, block);
                 break;
 
             // HAVE should be handled by PeerSeed to prevent race condition of the neighbor's bitfield
             // and the (not)interested messages
             case Message.TYPE_HAVE:
-                int index = Misc.byteArrayToInt(rcvMsg.getPayload());
-                boolean exist = thisPeer.checkPiece(index);
-                thisPeer.setNeighborBitfield(peerThread.getTarget().getPeerId(),index);
-                Log.println("Peer " + thisPeer.getPeerId() + " received the 'have' message from " +
-                        peerThread.getTarget().getPeerId() + " for the piece " + index);
-
-                if (!exist)
-                {
-                    peerThread.sendMessage(new Message(Message.TYPE_INTERESTED, null));
-                    if (!requesting && isUnchoke)
-                        sendRequest();
-                }
+                processHave(new int[]{Misc.byteArrayToInt(rcvMsg.getPayload())});
+                break;
 
+            case Message.TYPE_HAVE_SET:
+                processHave(HaveSet.decode(rcvMsg.getPayload(), thisPeer.NUM_OF_PIECES));
                 break;
 
             case Message.TYPE_UNCHOKE:
                 isUnchoke = true;
-                Log.println("Peer " + thisPeer.getPeerId() + " is unchoked by " + peerThread.getTarget().getPeerId());
+                thisPeer.countChokeReceived(false);
+                thisPeer.getLog().println("Peer {} is unchoked by {}", thisPeer.getPeerId(), peerThread.getTarget().getPeerId());
                 sendRequest();
                 break;
 
             case Message.TYPE_CHOKE:
                 isUnchoke = false;
-                Log.println("Peer " + thisPeer.getPeerId() + " is choked by " + peerThread.getTarget().getPeerId());
+                thisPeer.countChokeReceived(true);
+                thisPeer.getLog().println("Peer {} is choked by {}", thisPeer.getPeerId(), peerThread.getTarget().getPeerId());
+                cancelRequests();
                 break;
 
             default:
@@ -188,71 +234,117 @@ public class PeerSeed implements Runnable
         }
     }
 
+    /**
+     * Update the neighbor's bitfield with the pieces it announced, and request them if I don't have some
+     * @param pieces indexes of pieces
+     */
+    private void processHave(int[] pieces)
+    {
+        boolean exist = true;
+        for (int index : pieces)
+        {
+            exist &= thisPeer.checkPiece(index);
+            thisPeer.setNeighborBitfield(peerThread.getTarget().getPeerId(),index);
+            thisPeer.getLog().println("Peer {} received the 'have' message from {} for the piece {}", thisPeer.getPeerId(),
+                    peerThread.getTarget().getPeerId(), index);
+        }
+
+        if (!exist)
+        {
+            peerThread.sendMessage(new Message(Message.TYPE_INTERESTED, null));
+            sendRequest();
+        }
+    }
+
     /**
      * Send PIECE msg
      * @param pieceIdx index of piece
+     * @param begin offset of the data in the piece
+     * @param length length of the data
+     * @param block true if a block is requested, the PIECE payload then carries begin after the piece index
      * @throws IOException
      */
-    private void sendPiece(int pieceIdx) throws IOException
+    private void sendPiece(int pieceIdx, int begin, int length, boolean block) throws IOException
     {
-        int numPiece = thisPeer.NUM_OF_PIECES;
-        int offset = (pieceIdx == numPiece - 1)? (int)(peerProcess.FileSize - (numPiece - 1) * peerProcess.PieceSize) : peerProcess.PieceSize;
-        long filePtr = peerProcess.PieceSize * pieceIdx;
+        if (begin < 0 || length <= 0 || length > thisPeer.getPieceLength(pieceIdx) - begin) return;
+
+        long filePtr = (long) thisPeer.getConfig().PieceSize * pieceIdx + begin;
 
-        /* WARNING: flaws if offset is bigger than int */
-        byte[] buffer = new byte[4 + offset];
-        System.arraycopy(Misc.intToByteArray(pieceIdx), 0, buffer, 0, 4);
+        ByteBuffer prefix = ByteBuffer.allocate(block ? 8 : 4);
+        prefix.putInt(pieceIdx);
+        if (block)
+            prefix.putInt(begin);
 
-        file.seek(filePtr);
-        file.readFully(buffer, 4, offset); /* WARNING: flaws if offset is bigger than int */
+        thisPeer.addUploaded(peerThread.getTarget().getPeerId(), length);
+
+        // Zero-copy if the transport supports it and the block is in a single file
+        FileChannel file = thisPeer.getConfig().ZeroCopy ? store.getChannel(filePtr, length) : null;
+        if (file != null && peerThread.sendPiece(prefix.array(), file, store.getChannelPosition(filePtr), length))
+            return;
+
+        byte[] buffer = new byte[prefix.capacity() + length];
+        System.arraycopy(prefix.array(), 0, buffer, 0, prefix.capacity());
+
+        store.read(filePtr, buffer, prefix.capacity(), length);
 
         // Form PIECE msg
         peerThread.sendMessage(new Message(Message.TYPE_PIECE, buffer));
     }
 
     /**
-     * Find missing piece and send REQUEST msg
+     * Find missing blocks and send REQUEST msgs until the request window is full
      */
     private void sendRequest()
     {
-        requesting = false;
         if (thisPeer.getHasFile() || !isUnchoke)
         {
             return;
         }
 
-        int pieceIdx = thisPeer.selectNewPieceFromNeighbor(peerThread.getTarget().getPeerId());
-        if (pieceIdx < 0)
+        while (outstanding.size() < thisPeer.getConfig().RequestWindow)
         {
-            return;
-        }
+            int blockIdx = thisPeer.selectNewBlockFromNeighbor(peerThread.getTarget().getPeerId());
+            if (blockIdx < 0)
+            {
+                return;
+            }
 
-        // form request msg
-        peerThread.sendMessage(new Message(Message.TYPE_REQUEST, Misc.intToByteArray(pieceIdx)));
-//        Log.println("Request " + pieceIdx + " from neighbor " + peerThread.getTarget().getPeerId());
-        requesting = true;
+            // form request msg
+            peerThread.sendMessage(new Message(Message.TYPE_REQUEST, makeRequestPayload(blockIdx)));
+//            thisPeer.getLog().println("Request " + blockIdx + " from neighbor " + peerThread.getTarget().getPeerId());
+            outstanding.add(blockIdx);
+        }
     }
 
     /**
-     * Translate bitfield to payload, MSB -> index 0
-     * @param bitfield bitfield
-     * @return bitfield payload
+     * Make the payload of REQUEST msg: piece index, followed by begin and length if pieces are split into blocks
+     * @param blockIdx index of block
+     * @return payload
      */
-    private byte[] makeBitfieldMsg(byte[] bitfield)
+    private byte[] makeRequestPayload(int blockIdx)
     {
-        byte[] data = new byte[(int)Math.ceil(bitfield.length*1.0/8)];
-        Arrays.fill(data, (byte) 0);
+        if (!thisPeer.isBlockMode())
+            return Misc.intToByteArray(blockIdx);
 
-        int byteIdx = 0;
-        for (int i = 0; i < bitfield.length ; i++)
-        {
-            if (bitfield[i] == 1)
-                data[byteIdx] |= 0x80 >> (i % 8);
+        int pieceIdx = blockIdx / thisPeer.NUM_OF_BLOCKS_PER_PIECE;
+        int block = blockIdx % thisPeer.NUM_OF_BLOCKS_PER_PIECE;
 
-            if ((i + 1) % 8 == 0) byteIdx++;
-        }
+        ByteBuffer payload = ByteBuffer.allocate(12);
+        payload.putInt(pieceIdx);
+        payload.putInt(block * thisPeer.BLOCK_SIZE);
+        payload.putInt(thisPeer.getBlockLength(pieceIdx, block));
+        return payload.array();
+    }
 
-        return data;
+    /**
+     * Give back all outstanding requests when the neighbor chokes us
+     */
+    private void cancelRequests()
+    {
+        for (int blockIdx : outstanding)
+            thisPeer.cancelRequest(peerThread.getTarget().getPeerId(), blockIdx);
+
+        outstanding.clear();
     }
 
     /**
@@ -260,6 +352,9 @@ public class PeerSeed implements Runnable
      */
     public void exit()
     {
+        if (thread == null) // not started as a thread
+            return;
+
         while (true)
         {
             try
@@ -1,32 +1,58 @@
 import java.io.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class PeerThread implements Runnable
+public class PeerThread extends NeighborConnection implements Runnable
 {
-    private final Peer thisPeer;
-    private PeerInfo target;
-    private Socket socket;
-    private boolean initiator;
+    /**
+     * Flushes the messages that have lingered in the write buffer of a connection
+     */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PeerThread-flusher");
+        t.setDaemon(true);
+        return t;
+    });
 
-    private final DataOutputStream toNeighbor;
+    private final Socket socket;
+    private final SocketChannel channel; // null if the socket has no channel
+
+    private final OutputStream toNeighbor;
     private final DataInputStream fromNeighbor;
 
+    /* write buffer, frames waiting to be written by a single gathering write, guarded by writeLock. A lock rather than
+     * a monitor, because the socket is written while holding it, which would pin the carrier of a virtual thread */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private int pendingBytes = 0;
+    private boolean flushScheduled = false;
+    private final WriteStats writeStats;
+    private final int writeBatch; // bytes
+    private final int writeLinger; // microseconds
+
     private final BlockingQueue<MsgPeerSeed> toSeed;
 
     private final PeerSeed peerSeed;
 
     PeerThread(Peer thisPeer, PeerInfo target, Socket connectionSocket, boolean initiator) throws IOException
     {
-        this.target = target;
-        this.thisPeer = thisPeer;
+        super(thisPeer, target, initiator);
         this.socket = connectionSocket;
-        this.initiator = initiator;
 
-        toNeighbor = new DataOutputStream(socket.getOutputStream());
+        channel = socket.getChannel();
+        toNeighbor = socket.getOutputStream();
+        writeStats = thisPeer.getWriteStats();
+        writeBatch = thisPeer.getConfig().WriteBatch;
+        writeLinger = thisPeer.getConfig().WriteLinger;
         fromNeighbor = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
         toSeed = new LinkedBlockingQueue<>();
@@ -50,25 +76,38 @@ public class PeerThread implements Runnable
             // Create PeerSeed
             peerSeed.start();
 
+            BufferPool pool = thisPeer.getReceiveBufferPool();
+            byte[] msgLenType = new byte[Misc.MESSAGE_LENGTH_LENGTH + 1];
+
             while (true)
             {
                 // wait for incoming messages
-                byte[] msgLenType = new byte[Misc.MESSAGE_LENGTH_LENGTH + 1];
                 fromNeighbor.readFully(msgLenType);
 
                 int msgLen = ByteBuffer.wrap(msgLenType, 0, 4).getInt() - 1; // not including message type
                 byte msgType = msgLenType[4];
+                checkMessageLength(msgLen);
 
-                byte[] payload = new byte[msgLen];
-                if (msgType == Message.TYPE_PIECE)
-                {
-                    double downloadRate = readFullyAndGetRate(payload);
-                    thisPeer.setDownloadRate(target.getPeerId(), downloadRate);
-                } else
+                if (msgType == Message.TYPE_PIECE && msgLen <= pool.getBufferSize())
                 {
-                    fromNeighbor.readFully(payload);
+                    byte[] payload = pool.borrow();
+                    try
+                    {
+                        fromNeighbor.readFully(payload, 0, msgLen);
+                        updateDownloadRate(msgLen);
+                        processReceivedPiece(payload, msgLen);
+                    } finally
+                    {
+                        pool.release(payload);
+                    }
+                    continue;
                 }
 
+                byte[] payload = new byte[msgLen];
+                fromNeighbor.readFully(payload);
+                if (msgType == Message.TYPE_PIECE)
+                    updateDownloadRate(msgLen);
+
                 processReceivedMessage(new Message(msgType, payload));
             }
 
@@ -98,39 +137,20 @@ public class PeerThread implements Runnable
     private int handshake() throws IOException
     {
         if (initiator)
-        {
             sendHandShake();
-            int targetId = receiveHandShake2();
-
-            if (targetId < 0)
-            {
-                socket.close();
-                return -1;
-            }
-        }
-        else
-        {
-            int targetId = receiveHandShake();
-            if (targetId < 0)
-            {
-                socket.close();
-                return -1;
-            }
 
-            // find peer id and assign target
-            for (PeerInfo p: thisPeer.getPeerList())
-            {
-                if (p.getPeerId() == targetId)
-                {
-                    target = p;
-                    break;
-                }
-            }
+        byte[] buffer = new byte[Misc.LENGTH_HANDSHAKE];
+        fromNeighbor.readFully(buffer);
 
-            Log.println("Peer " + thisPeer.getPeerId() + " is connected from Peer " + targetId);
+        int targetId = checkHandShake(buffer);
+        if (targetId < 0)
+        {
+            socket.close();
+            return -1;
+        }
 
+        if (!initiator)
             sendHandShake();
-        }
 
         return 0;
     }
@@ -143,11 +163,8 @@ public class PeerThread implements Runnable
         /* send message */
         try
         {
-            String messageOut = "P2PFILESHARINGPROJ" + "0000000000" + thisPeer.getPeerId();
-
-            toNeighbor.write(messageOut.getBytes());
-            toNeighbor.flush();
-//            System.out.println("Get: Send Handshake Message: { " + messageOut + " } to Client " + target.getPeerId());
+            queue(ByteBuffer.wrap(makeHandShake()), true);
+//            System.out.println("Get: Send Handshake Message to Client " + target.getPeerId());
         }
         catch (IOException ioException)
         {
@@ -156,142 +173,146 @@ public class PeerThread implements Runnable
     }
 
     /**
-     * Non-initiator waits for handshake msg
-     * @return target peer Id, -1 if failed
-     * @throws IOException
+     * Send message to socket, the message is coalesced with the following ones unless the write buffer is full
+     * @param msg Message object
      */
-    private int receiveHandShake() throws IOException
+    @Override
+    void sendMessage(Message msg)
     {
-        byte[] buffer = new byte[Misc.LENGTH_HANDSHAKE];
-        fromNeighbor.readFully(buffer);
-
-        String rcvMsg = new String(buffer);
-//        System.out.println("Get: Receive msg " + rcvMsg);
-
-        /* check handshake message */
-        if (!rcvMsg.substring(0, 18).equals("P2PFILESHARINGPROJ"))
+//        System.out.println("Sending message of type " + msg.getType() + " to " + target.getPeerId());
+        try
         {
-//            System.out.println("Get: Wrong handshake");
-            return -1;
+            queue(makeFrame(msg), false);
+        }catch (IOException e)
+        {
+            e.printStackTrace();
         }
-
-        return Integer.parseInt(rcvMsg.substring(28, 32));
     }
 
     /**
-     * Initiator waits for handshake msg
-     * @return target peer Id, -1 if failed
-     * @throws IOException
+     * Send a PIECE msg with FileChannel.transferTo, only possible if the socket has a channel
+     * @param prefix payload before the data: piece index, and begin if it is a block
+     * @param file file to read the piece from
+     * @param position position of the data in the file
+     * @param length length of the data
+     * @return true if sent, false if the socket has no channel
+     * @throws IOException if the piece couldn't be sent, the socket is then closed
      */
-    private int receiveHandShake2() throws IOException
+    @Override
+    boolean sendPiece(byte[] prefix, FileChannel file, long position, int length) throws IOException
     {
-        byte[] buffer = new byte[Misc.LENGTH_HANDSHAKE];
-        fromNeighbor.readFully(buffer);
+        if (channel == null)
+            return false;
 
-        String rcvMsg = new String(buffer);
-//        System.out.println("Get: Receive msg " + rcvMsg);
-
-        int peerId = Integer.parseInt(rcvMsg.substring(28,32));
+        writeLock.lock();
+        try
+        {
+            // the header goes out with the queued messages
+            queue(makePieceHeader(prefix, length), true);
 
-        /* check handshake message */
-        if (!rcvMsg.substring(0, 18).equals("P2PFILESHARINGPROJ") || peerId != target.getPeerId())
+            long sent = 0;
+            while (sent < length)
+            {
+                long n = file.transferTo(position + sent, length - sent, channel);
+                if (n <= 0) throw new EOFException("Position " + (position + sent) + " is beyond the end of file");
+                writeStats.addWrite(n);
+                sent += n;
+            }
+        } catch (IOException e)
         {
-//            System.out.println("Get: Wrong handshake");
-            return -1;
+            // a part of the frame may be sent already, the next frames couldn't be parsed by the neighbor
+            socket.close();
+            throw e;
+        } finally
+        {
+            writeLock.unlock();
         }
 
-        return peerId;
+        return true;
     }
 
     /**
-     * Process message
-     * @param rcvMsg Message object of the received msg
+     * Add a frame to the write buffer. The buffer is written once it holds Config.WriteBatch bytes, or
+     * Config.WriteLinger microseconds later
+     * @param frame frame to send
+     * @param flush true to write the buffer now
+     * @throws IOException
      */
-    private void processReceivedMessage(Message rcvMsg)
+    private void queue(ByteBuffer frame, boolean flush) throws IOException
     {
-//        System.out.println("Get: Receive msg of type " + rcvMsg.getType() + " from " + target.getPeerId());
-        switch (rcvMsg.getType())
+        writeLock.lock();
+        try
         {
-            case Message.TYPE_BITFIELD:
-                boolean[] seedBitfield = makeBitfieldFromPayload(rcvMsg.getPayload());
-                thisPeer.setNeighborBitfield(target.getPeerId(), seedBitfield);
-
-                // if there exists an interesting piece, send INTERESTED
-                for (int i = 0; i < seedBitfield.length; i++)
-                    if (seedBitfield[i] && !thisPeer.checkPiece(i))
-                    {
-                        sendMessage(new Message(Message.TYPE_INTERESTED, null));
-                        return;
-                    }
+            pending.add(frame);
+            pendingBytes += frame.remaining();
+            writeStats.addMessage();
 
-                sendMessage(new Message(Message.TYPE_NOT_INTERESTED, null));
-                break;
-
-            // HAVE should be handled by PeerSeed to prevent from prematurely sending Not interested
-//            case Message.TYPE_HAVE:
-//                //handle have
-//                sendSeed(MsgPeerSeed.TYPE_MSG, rcvMsg);
-//                int index = Misc.byteArrayToInt(rcvMsg.getPayload());
-//                boolean exist = thisPeer.checkPiece(index);
-//
-//                if (!exist && isUnchoke.get())
-//                    sendSeed(MsgPeerSeed.TYPE_REQUEST, null);
-//
-//                break
-
-            case Message.TYPE_PIECE:
-                // Write to file
-                byte[] payload = rcvMsg.getPayload();
-                int piece = ByteBuffer.wrap(payload, 0, 4).getInt();
-                thisPeer.handleRcvNewPiece(piece, target.getPeerId(), payload, 4, payload.length - 4);
-
-                sendSeed(MsgPeerSeed.TYPE_REQUEST, null);
-                break;
-
-            case Message.TYPE_INTERESTED:
-                thisPeer.setInterestedNeighbor(target.getPeerId(), true);
-                Log.println("Peer " + thisPeer.getPeerId() + " received the 'interested' message from " +
-                        target.getPeerId());
-                break;
-
-            case Message.TYPE_NOT_INTERESTED:
-                thisPeer.setInterestedNeighbor(target.getPeerId(), false);
-                Log.println("Peer " + thisPeer.getPeerId() + " received the 'not interested' message from " +
-                        target.getPeerId());
-                break;
-
-            default: // send to PeerSeed other messages
-                sendSeed(MsgPeerSeed.TYPE_MSG, rcvMsg);
+            if (flush || pendingBytes >= writeBatch || writeLinger <= 0)
+            {
+                flushPending();
+            }
+            else if (!flushScheduled)
+            {
+                flushScheduled = true;
+                flusher.schedule(this::flush, writeLinger, TimeUnit.MICROSECONDS);
+            }
+        } finally
+        {
+            writeLock.unlock();
         }
     }
 
     /**
-     * Send message to socket
-     * @param msg Message object
+     * Write the lingering messages
      */
-    void sendMessage(Message msg)
+    private void flush()
     {
-        byte[] payload = msg.getPayload();
-        int length;
+        writeLock.lock();
+        try
+        {
+            flushScheduled = false;
+            if (!socket.isClosed())
+                flushPending();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
 
-        if (payload == null)
-            length = 1;
-        else
-            length = 1 + msg.getPayload().length;
+    /**
+     * Write the whole write buffer, with a single gathering write if the socket has a channel. The caller holds the
+     * writeLock
+     * @throws IOException
+     */
+    private void flushPending() throws IOException
+    {
+        if (pending.isEmpty()) return;
 
-//        System.out.println("Sending message of type " + msg.getType() + " with length " + length + " to " + target.getPeerId());
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+        int remaining = pendingBytes;
+        pending.clear();
+        pendingBytes = 0;
 
-        synchronized (toNeighbor)
+        if (channel != null)
         {
-            try
+            while (remaining > 0)
             {
-                toNeighbor.writeInt(length);
-                toNeighbor.writeByte(msg.getType());
-                toNeighbor.write(payload, 0, length - 1);
-            }catch (IOException e)
+                long n = channel.write(buffers);
+                writeStats.addWrite(n);
+                remaining -= n;
+            }
+        }
+        else
+        {
+            for (ByteBuffer b : buffers)
             {
-                e.printStackTrace();
+                toNeighbor.write(b.array(), b.position(), b.remaining());
+                writeStats.addWrite(b.remaining());
             }
+            toNeighbor.flush();
         }
     }
 
@@ -300,6 +321,7 @@ public class PeerThread implements Runnable
      * @param type type of MsgPeerSeed
      * @param content object to send
      */
+    @Override
     void sendSeed(byte type, Object content)
     {
         MsgPeerSeed msg = new MsgPeerSeed(type, content);
@@ -312,75 +334,34 @@ public class PeerThread implements Runnable
         }
     }
 
-    /**
-     * Translate payload to bitfield
-     * @param payload payload (array of bytes)
-     * @return bitfield
-     */
-    private boolean[] makeBitfieldFromPayload(byte[] payload)
-    {
-        boolean[] bitfield = new boolean[thisPeer.NUM_OF_PIECES];
-        int byteIdx = 0;
-
-        for (int i = 0; i < bitfield.length; i++)
-        {
-            bitfield[i] = (payload[byteIdx] & (0x80 >> (i % 8))) != 0;
-
-            if ((i + 1) % 8 == 0) byteIdx++;
-        }
-        return bitfield;
-    }
-
-    /**
-     * Read data from socket and return download rate
-     * @param buffer the buffer into which the data is read
-     * @return download rate
-     * @throws IOException
-     */
-    private double readFullyAndGetRate(byte[] buffer) throws IOException
-    {
-        // TODO: nanoTime doesn't capture wall-clock time
-        long start = System.nanoTime();
-        fromNeighbor.readFully(buffer);
-        long cost = System.nanoTime() - start;
-
-        double estRate = 0.875;
-        double downloadRate;
-        double estimateDownloadRate = 0.0;
-
-        if (cost > 0)
-        {
-            downloadRate = buffer.length * 1000.0 / cost;
-            //TODO: do we need this?
-            estimateDownloadRate = estRate*thisPeer.getDownloadRate(target.getPeerId()) + (1-estRate)*downloadRate;
-//            Log.println("Rate of neighbor " + target.getPeerId() + " is: " + estimateDownloadRate + '\t' + cost);
-        }
-
-        return estimateDownloadRate;
-    }
-
-    public PeerInfo getTarget()
-    {
-        return target;
-    }
-
     public void start()
     {
-        new Thread(this).start();
+        Threads.start(this, (target == null) ? "PeerThread" : "PeerThread-" + target.getPeerId());
     }
 
     /**
      * exit procedure for PeerThread
      * @throws IOException
      */
+    @Override
     public void exit() throws IOException
     {
         peerSeed.exit(); // wait until PeerSeed exit
-        synchronized (toNeighbor)
+        writeLock.lock();
+        try
         {
-            toNeighbor.flush();
+            if (!socket.isClosed())
+                flushPending();
+        } finally
+        {
+            writeLock.unlock();
         }
         socket.close();
     }
 
+    @Override
+    int getSeedQueueSize()
+    {
+        return toSeed.size();
+    }
 }
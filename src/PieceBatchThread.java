@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Thread handing pieces over in batches: the first piece added opens a batch, which is flushed delayMs later with all
+ * pieces added meanwhile. The pending pieces are flushed when the thread exits.
+ */
+public abstract class PieceBatchThread implements Runnable
+{
+    private final BlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final int delayMs;
+
+    /**
+     * @param name name of the thread
+     * @param delayMs time between the first piece of a batch and its flush, in milliseconds
+     */
+    PieceBatchThread(String name, int delayMs)
+    {
+        this.delayMs = Math.max(1, delayMs);
+        thread = Threads.newThread(this, name);
+    }
+
+    /**
+     * Handle a batch, called by the thread
+     * @param pieces piece indexes, in the order they were added
+     */
+    protected abstract void flush(int[] pieces);
+
+    /**
+     * Add a piece to the next batch
+     * @param idx piece index
+     */
+    public void add(int idx)
+    {
+        pending.add(idx);
+    }
+
+    @Override
+    public void run()
+    {
+        int first = -1; // taken from the queue already, it opens the batch
+        try
+        {
+            while (true)
+            {
+                first = pending.take();
+                Thread.sleep(delayMs);
+                flushPending(first);
+                first = -1;
+            }
+        } catch (InterruptedException e)
+        {
+            flushPending(first);
+        }
+    }
+
+    /**
+     * Flush the pending pieces
+     * @param first piece taken from the queue already, -1 if none
+     */
+    private void flushPending(int first)
+    {
+        List<Integer> pieces = new ArrayList<>();
+        if (first >= 0) pieces.add(first);
+        pending.drainTo(pieces);
+        if (pieces.isEmpty()) return;
+
+        int[] batch = new int[pieces.size()];
+        for (int i = 0; i < batch.length; i++)
+            batch[i] = pieces.get(i);
+        flush(batch);
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Exit procedure, the pending pieces are flushed before
+     */
+    public void exit()
+    {
+        thread.interrupt();
+
+        try
+        {
+            thread.join();
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-size set of piece indexes packed into 64-bit words. Counting and set operations work a word at a time, and
+ * the wire bitfield format (MSB of the first byte is index 0) is converted a byte at a time. Not thread-safe, the
+ * owner synchronizes.
+ */
+public class PieceBitSet
+{
+    private final int size;
+    private final long[] words;
+
+    PieceBitSet(int size)
+    {
+        this(size, new long[(size + 63) >>> 6]);
+    }
+
+    /**
+     * @param size number of pieces
+     * @param words the words, owned by this set from now on
+     */
+    PieceBitSet(int size, long[] words)
+    {
+        this.size = size;
+        this.words = words;
+    }
+
+    /**
+     * Make a bitset from the payload of BITFIELD msg, spare bits and missing bytes are ignored
+     * @param payload bitfield payload
+     * @param size number of pieces
+     * @return bitset
+     */
+    public static PieceBitSet fromByteArray(byte[] payload, int size)
+    {
+        PieceBitSet bs = new PieceBitSet(size);
+        int numOfBytes = Math.min(payload.length, (size + 7) >>> 3);
+        for (int i = 0; i < numOfBytes; i++)
+        {
+            long b = Integer.reverse(payload[i] & 0xFF) >>> 24; // MSB first -> LSB first
+            bs.words[i >>> 3] |= b << ((i & 7) << 3);
+        }
+        bs.clearSpareBits();
+        return bs;
+    }
+
+    /**
+     * Translate to the payload of BITFIELD msg, MSB -> index 0
+     * @return bitfield payload
+     */
+    public byte[] toByteArray()
+    {
+        byte[] payload = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < payload.length; i++)
+        {
+            int b = (int) (words[i >>> 3] >>> ((i & 7) << 3)) & 0xFF;
+            payload[i] = (byte) (Integer.reverse(b) >>> 24);
+        }
+        return payload;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean get(int idx)
+    {
+        return (words[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    public void set(int idx)
+    {
+        words[idx >>> 6] |= 1L << idx;
+    }
+
+    public void clear(int idx)
+    {
+        words[idx >>> 6] &= ~(1L << idx);
+    }
+
+    /**
+     * Set all pieces
+     */
+    public void setAll()
+    {
+        Arrays.fill(words, -1L);
+        clearSpareBits();
+    }
+
+    /**
+     * Number of pieces in the set
+     * @return number of set bits
+     */
+    public int cardinality()
+    {
+        int cnt = 0;
+        for (long w : words)
+            cnt += Long.bitCount(w);
+        return cnt;
+    }
+
+    /**
+     * Check if all pieces are in the set
+     * @return true if full
+     */
+    public boolean isFull()
+    {
+        return cardinality() == size;
+    }
+
+    /**
+     * Check if this set has a piece that another set lacks
+     * @param other the other set, of the same size
+     * @return true if (this AND NOT other) is not empty
+     */
+    public boolean hasAnyNotIn(PieceBitSet other)
+    {
+        for (int i = 0; i < words.length; i++)
+            if ((words[i] & ~other.words[i]) != 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Remove the pieces of another set from this set
+     * @param other the other set, of the same size
+     * @return this
+     */
+    public PieceBitSet andNot(PieceBitSet other)
+    {
+        for (int i = 0; i < words.length; i++)
+            words[i] &= ~other.words[i];
+        return this;
+    }
+
+    /**
+     * Keep only the pieces that are also in another set
+     * @param other the other set, of the same size
+     * @return this
+     */
+    public PieceBitSet and(PieceBitSet other)
+    {
+        for (int i = 0; i < words.length; i++)
+            words[i] &= other.words[i];
+        return this;
+    }
+
+    /**
+     * Index of the next piece in the set
+     * @param from index to start from, inclusive
+     * @return piece index, -1 if none
+     */
+    public int nextSetBit(int from)
+    {
+        if (from >= size) return -1;
+
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (true)
+        {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+    }
+
+    /**
+     * Index of the n-th piece in the set, e.g. to pick one at random
+     * @param n rank, from 0 to cardinality() - 1
+     * @return piece index, -1 if the set has less than n + 1 pieces
+     */
+    public int nthSetBit(int n)
+    {
+        for (int w = 0; w < words.length; w++)
+        {
+            int cnt = Long.bitCount(words[w]);
+            if (n >= cnt)
+            {
+                n -= cnt;
+                continue;
+            }
+
+            long word = words[w];
+            for (int i = 0; i < n; i++)
+                word &= word - 1; // drop the lowest set bit
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        return -1;
+    }
+
+    long getWord(int w)
+    {
+        return words[w];
+    }
+
+    public PieceBitSet copy()
+    {
+        PieceBitSet bs = new PieceBitSet(size);
+        System.arraycopy(words, 0, bs.words, 0, words.length);
+        return bs;
+    }
+
+    private void clearSpareBits()
+    {
+        if ((size & 63) != 0)
+            words[words.length - 1] &= (1L << size) - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1))
+        {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(i);
+        }
+        return sb.append("] ").append(cardinality()).append('/').append(size).toString();
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Completed pieces appended to a journal next to the shared file, so that a restarted peer resumes where it stopped.
+ * The receive path only queues a piece, a thread writes the queued pieces every Config.JournalSync milliseconds as one
+ * batch: the number of pieces, then their indexes. The store is synced before each batch and the journal after it, so
+ * a piece in the journal is on disk. A batch cut short by a crash is dropped when the journal is read.
+ */
+public class PieceJournal extends PieceBatchThread
+{
+    private static final int MAGIC = 0x4D4D4A31; // "MMJ1"
+    private static final int HEADER_LENGTH = 16; // MAGIC, file size, piece size
+
+    private final FileChannel channel;
+    private final PieceStore store;
+    private final long fileSize;
+    private final int pieceSize;
+
+    private final PieceBitSet restored; // pieces read from the journal
+    private int[] lastBatch = new int[0]; // pieces of the last batch read
+
+    /**
+     * Open a journal, and read it if it is for the same file
+     * @param path path of the journal
+     * @param store store of the shared file
+     * @param config settings of the peer
+     * @param numOfPieces number of pieces of the file
+     * @param trusted false if the shared file was just created, the journal is emptied
+     * @throws IOException
+     */
+    PieceJournal(String path, PieceStore store, Config config, int numOfPieces, boolean trusted) throws IOException
+    {
+        super("PieceJournal", config.JournalSync);
+        this.store = store;
+        this.fileSize = config.FileSize;
+        this.pieceSize = config.PieceSize;
+        restored = new PieceBitSet(numOfPieces);
+
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (!(trusted && readBatches()))
+            rewrite(restored);
+    }
+
+    /**
+     * Read the header and the complete batches, and drop what follows them
+     * @return false if the journal is empty or for another file
+     * @throws IOException
+     */
+    private boolean readBatches() throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_LENGTH)
+            return false;
+
+        ByteBuffer content = ByteBuffer.allocate((int) size);
+        while (content.hasRemaining())
+            if (channel.read(content, content.position()) < 0)
+                return false;
+        content.flip();
+
+        if (content.getInt() != MAGIC || content.getLong() != fileSize || content.getInt() != pieceSize)
+            return false;
+
+        long end = content.position();
+        while (content.remaining() >= 4)
+        {
+            int count = content.getInt();
+            if (count <= 0 || count > content.remaining() / 4)
+                break; // cut short
+
+            int[] batch = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                batch[i] = content.getInt();
+                if (batch[i] >= 0 && batch[i] < restored.size())
+                    restored.set(batch[i]);
+            }
+            lastBatch = batch;
+            end = content.position();
+        }
+
+        channel.truncate(end);
+        channel.position(end);
+        return true;
+    }
+
+    /**
+     * Replace the journal by a single batch, e.g. after pieces read from it failed verification
+     * @param pieces pieces to keep
+     * @throws IOException
+     */
+    void rewrite(PieceBitSet pieces) throws IOException
+    {
+        int count = pieces.cardinality();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (count > 0 ? 4 + 4 * count : 0));
+        buffer.putInt(MAGIC).putLong(fileSize).putInt(pieceSize);
+        if (count > 0)
+        {
+            buffer.putInt(count);
+            for (int idx = pieces.nextSetBit(0); idx >= 0; idx = pieces.nextSetBit(idx + 1))
+                buffer.putInt(idx);
+        }
+        buffer.flip();
+
+        channel.truncate(0);
+        channel.position(0);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+    }
+
+    /**
+     * Getter for the pieces read from the journal
+     * @return pieces
+     */
+    PieceBitSet getRestored()
+    {
+        return restored;
+    }
+
+    /**
+     * Getter for the pieces of the last batch read, the most likely to be incomplete on disk
+     * @return piece indexes
+     */
+    int[] getLastBatch()
+    {
+        return lastBatch;
+    }
+
+    /**
+     * Sync the store, then append a batch of completed pieces and sync the journal
+     * @param pieces piece indexes
+     */
+    @Override
+    protected void flush(int[] pieces)
+    {
+        ByteBuffer batch = ByteBuffer.allocate(4 + 4 * pieces.length);
+        batch.putInt(pieces.length);
+        for (int idx : pieces)
+            batch.putInt(idx);
+        batch.flip();
+
+        try
+        {
+            store.sync();
+            while (batch.hasRemaining())
+                channel.write(batch);
+            channel.force(false);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Exit procedure, the pending pieces are written before
+     */
+    @Override
+    public void exit()
+    {
+        super.exit();
+
+        try
+        {
+            channel.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
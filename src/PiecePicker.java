@@ -0,0 +1,203 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rarest-first piece selection. The availability of each piece (number of neighbors having it) is updated
+ * incrementally from BITFIELD and HAVE msgs. The pieces I want (neither have nor download) are kept in one list per
+ * availability, so the rarest piece a neighbor has is found by walking the lists from the lowest availability. When the
+ * neighbor has fewer pieces than I want, its bitfield is scanned instead, so a pick visits at most the smaller of the
+ * two sets. Pieces are inserted at a random end of their list to break ties randomly.
+ */
+public class PiecePicker
+{
+    private final int[] availability;
+    private final PieceBitSet wanted;
+    private int numOfWanted;
+
+    /* doubly linked lists of wanted pieces, one per availability, -1 is the end */
+    private final int[] head;
+    private final int[] tail;
+    private final int[] next;
+    private final int[] prev;
+
+    private final Random random = new Random();
+
+    /**
+     * @param numOfPieces number of pieces
+     * @param maxAvailability number of neighbors
+     * @param have pieces I already have, the others are wanted
+     */
+    PiecePicker(int numOfPieces, int maxAvailability, PieceBitSet have)
+    {
+        availability = new int[numOfPieces];
+        wanted = new PieceBitSet(numOfPieces);
+        head = new int[maxAvailability + 1];
+        tail = new int[maxAvailability + 1];
+        next = new int[numOfPieces];
+        prev = new int[numOfPieces];
+        Arrays.fill(head, -1);
+        Arrays.fill(tail, -1);
+
+        for (int i = 0; i < numOfPieces; i++)
+            if (!have.get(i))
+                setWanted(i, true);
+    }
+
+    /**
+     * A neighbor announced pieces it didn't have, e.g. in its BITFIELD msg
+     * @param pieces the new pieces of the neighbor
+     */
+    public synchronized void incAvailability(PieceBitSet pieces)
+    {
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1))
+            changeAvailability(i, 1);
+    }
+
+    /**
+     * A neighbor announced a piece it didn't have
+     * @param idx piece index
+     */
+    public synchronized void incAvailability(int idx)
+    {
+        changeAvailability(idx, 1);
+    }
+
+    public synchronized int getAvailability(int idx)
+    {
+        return availability[idx];
+    }
+
+    /**
+     * Mark a piece as wanted when it may be requested, or not wanted when it is being downloaded or completed
+     * @param idx piece index
+     * @param isWanted true if wanted
+     */
+    public synchronized void setWanted(int idx, boolean isWanted)
+    {
+        if (wanted.get(idx) == isWanted) return;
+
+        if (isWanted)
+        {
+            wanted.set(idx);
+            numOfWanted++;
+            link(idx);
+        }
+        else
+        {
+            unlink(idx);
+            wanted.clear(idx);
+            numOfWanted--;
+        }
+    }
+
+    /**
+     * Find the rarest wanted piece that a neighbor has
+     * @param neighborBitfield bitfield of the neighbor
+     * @return piece index, -1 if the neighbor has no wanted piece
+     */
+    public synchronized int pickRarest(PieceBitSet neighborBitfield)
+    {
+        if (neighborBitfield.cardinality() < numOfWanted)
+            return pickRarestOf(neighborBitfield);
+
+        for (int a = 1; a < head.length; a++) // nobody can supply the pieces of availability 0
+        {
+            for (int idx = head[a]; idx >= 0; idx = next[idx])
+                if (neighborBitfield.get(idx))
+                    return idx;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the rarest wanted piece among the pieces of a neighbor, ties are broken randomly
+     * @param neighborBitfield bitfield of the neighbor
+     * @return piece index, -1 if the neighbor has no wanted piece
+     */
+    private int pickRarestOf(PieceBitSet neighborBitfield)
+    {
+        int rarest = -1;
+        int numOfTies = 0;
+        for (int idx = neighborBitfield.nextSetBit(0); idx >= 0; idx = neighborBitfield.nextSetBit(idx + 1))
+        {
+            int a = availability[idx];
+            if (!wanted.get(idx) || a == 0) continue;
+
+            if (rarest < 0 || a < availability[rarest])
+            {
+                rarest = idx;
+                numOfTies = 1;
+            }
+            else if (a == availability[rarest] && random.nextInt(++numOfTies) == 0)
+            {
+                rarest = idx;
+            }
+        }
+        return rarest;
+    }
+
+    /**
+     * Find the rarest wanted piece that a neighbor has and mark it as not wanted, so that no other thread takes it
+     * @param neighborBitfield bitfield of the neighbor
+     * @return piece index, -1 if the neighbor has no wanted piece
+     */
+    public synchronized int takeRarest(PieceBitSet neighborBitfield)
+    {
+        int idx = pickRarest(neighborBitfield);
+        if (idx >= 0)
+            setWanted(idx, false);
+        return idx;
+    }
+
+    private void changeAvailability(int idx, int delta)
+    {
+        int a = Math.max(0, Math.min(head.length - 1, availability[idx] + delta));
+        if (a == availability[idx]) return;
+
+        boolean isWanted = wanted.get(idx);
+        if (isWanted) unlink(idx);
+        availability[idx] = a;
+        if (isWanted) link(idx);
+    }
+
+    /**
+     * Insert a piece into the list of its availability
+     * @param idx piece index
+     */
+    private void link(int idx)
+    {
+        int a = availability[idx];
+        if (head[a] < 0)
+        {
+            prev[idx] = next[idx] = -1;
+            head[a] = tail[a] = idx;
+        }
+        else if (random.nextBoolean())
+        {
+            prev[idx] = -1;
+            next[idx] = head[a];
+            prev[head[a]] = idx;
+            head[a] = idx;
+        }
+        else
+        {
+            next[idx] = -1;
+            prev[idx] = tail[a];
+            next[tail[a]] = idx;
+            tail[a] = idx;
+        }
+    }
+
+    /**
+     * Remove a piece from the list of its availability
+     * @param idx piece index
+     */
+    private void unlink(int idx)
+    {
+        int a = availability[idx];
+        if (prev[idx] >= 0) next[prev[idx]] = next[idx];
+        else head[a] = next[idx];
+        if (next[idx] >= 0) prev[next[idx]] = prev[idx];
+        else tail[a] = prev[idx];
+    }
+}
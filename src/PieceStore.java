@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage of the shared file. Positions are byte offsets in the file, and reads and writes of different regions can be
+ * called concurrently. A content of several files is stored as if its files were one after the other in a single file
+ */
+public interface PieceStore
+{
+    /**
+     * Write data to the file
+     * @param position position in the file
+     * @param buffer data
+     * @param offset the start offset in the data
+     * @param length number of bytes to write
+     * @throws IOException
+     */
+    void write(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Read data from the file
+     * @param position position in the file
+     * @param buffer the buffer into which the data is read
+     * @param offset the start offset in the buffer
+     * @param length number of bytes to read
+     * @throws IOException
+     */
+    void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Force the data written so far to the disk
+     * @throws IOException
+     */
+    void sync() throws IOException;
+
+    /**
+     * Channel of the file holding a region, used to transfer pieces to sockets without copying
+     * @param position position of the region
+     * @param length length of the region
+     * @return file channel, null if the region is split over several files
+     */
+    FileChannel getChannel(long position, int length);
+
+    /**
+     * Position of a region in the channel returned by getChannel
+     * @param position position of the region
+     * @return position in the channel
+     */
+    long getChannelPosition(long position);
+
+    /**
+     * Flush and close the file
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+    /**
+     * Open the store of the shared file, a MultiFileStore if Common.cfg lists the files of the content
+     * @param path path of the file, or of the directory of the files
+     * @param config settings of the peer
+     * @return the store
+     * @throws IOException
+     */
+    static PieceStore open(String path, Config config) throws IOException
+    {
+        if (!config.ContentFiles.isEmpty())
+            return new MultiFileStore(path, config.ContentFiles, config.Storage);
+        return open(path, config.FileSize, config.Storage);
+    }
+
+    /**
+     * Open a store of a single file
+     * @param path path of the file
+     * @param size size of the file
+     * @param storage Config.STORAGE_MMAP or Config.STORAGE_FILE
+     * @return the store
+     * @throws IOException
+     */
+    static PieceStore open(String path, long size, String storage) throws IOException
+    {
+        if (storage.equals(Config.STORAGE_MMAP))
+            return new MappedPieceStore(path, size, MappedPieceStore.WINDOW_SIZE);
+        else
+            return new FilePieceStore(path);
+    }
+}
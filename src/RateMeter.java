@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes transferred with a neighbor over a sliding window of Config.RateWindow milliseconds, split into
+ * NUM_OF_BUCKETS time buckets. A bucket is reused once its time has left the window, so idle time counts as zero bytes
+ * and the rate decays when the neighbor stops sending. Counting takes no lock: the adder that moves a bucket to a new
+ * period resets it, an add racing with that reset may be lost, which only matters to the rate and not to the total.
+ */
+public class RateMeter
+{
+    private static final int NUM_OF_BUCKETS = 10;
+
+    private final long bucketNanos;
+    private final long start = System.nanoTime();
+
+    private final AtomicLongArray bytes = new AtomicLongArray(NUM_OF_BUCKETS);
+    private final AtomicLongArray bucketTime = new AtomicLongArray(NUM_OF_BUCKETS); // period counted in each slot
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * @param windowMs length of the window, in milliseconds
+     */
+    RateMeter(int windowMs)
+    {
+        bucketNanos = Math.max(1, windowMs) * 1000000L / NUM_OF_BUCKETS;
+    }
+
+    /**
+     * Count transferred bytes
+     * @param length number of bytes
+     */
+    public void add(long length)
+    {
+        long t = (System.nanoTime() - start) / bucketNanos;
+        int slot = (int) (t % NUM_OF_BUCKETS);
+
+        long old = bucketTime.get(slot);
+        if (old != t && bucketTime.compareAndSet(slot, old, t))
+            bytes.set(slot, 0);
+
+        bytes.addAndGet(slot, length);
+        total.add(length);
+    }
+
+    /**
+     * Rate over the window, or over the lifetime of the meter if it is shorter than the window
+     * @return bytes per second
+     */
+    public double getRate()
+    {
+        long now = System.nanoTime() - start;
+        long t = now / bucketNanos;
+
+        long sum = 0;
+        for (int i = 0; i < NUM_OF_BUCKETS; i++)
+            if (t - bucketTime.get(i) < NUM_OF_BUCKETS)
+                sum += bytes.get(i);
+
+        // the current bucket is partly elapsed
+        long elapsed = Math.min(now, (NUM_OF_BUCKETS - 1) * bucketNanos + now % bucketNanos);
+        return (elapsed <= 0) ? 0 : sum * 1e9 / elapsed;
+    }
+
+    public long getTotal()
+    {
+        return total.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%.1fKB/s total=%dKB", getRate() / 1024, getTotal() / 1024);
+    }
+}
@@ -1,68 +1,95 @@
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Detect the requests that are not answered in time, using a hashed timer wheel. The wheel has WHEEL_SIZE slots of
+ * Config.TimeoutTick milliseconds, a request is put into the slot of its expiry tick and is found again by
+ * (neighbor, piece) in a map, so adding and removing are O(1) and a tick only visits one slot. The timeout of each
+ * request is given by the caller, see RttEstimator.
+ */
 public class RequestTimedOutThread implements Runnable
 {
     /**
-     * Store index and timestamp of a requested piece
+     * Store neighbor, index, request time and expiry tick of a requested piece, linked into the list of its slot
      */
-    private class RequestInfo
+    private static class RequestInfo
     {
+        private final int neighborId;
         private final int pieceIdx;
-        private final long timestamp_ms;
+        private final long expiryTick;
+        private final long requestedNanos = System.nanoTime();
+        private RequestInfo prev;
+        private RequestInfo next;
 
-        public RequestInfo(int pieceIdx, long timestamp_ms)
+        RequestInfo(int neighborId, int pieceIdx, long expiryTick)
         {
+            this.neighborId = neighborId;
             this.pieceIdx = pieceIdx;
-            this.timestamp_ms = timestamp_ms;
+            this.expiryTick = expiryTick;
         }
     }
 
-    private static final int MAX_TIMEOUT_SECOND = 2;
+    private static final int WHEEL_SIZE = 512;
+
     private final Peer peer;
     private final Thread thread;
 
-    private final LinkedList<RequestInfo> pieceIdxList;
+    /* guarded by requests */
+    private final Map<Long, RequestInfo> requests = new HashMap<>();
+    private final RequestInfo[] wheel = new RequestInfo[WHEEL_SIZE];
+    private long currentTick = 0;
+
+    private final long tickMs;
 
     RequestTimedOutThread(Peer peer)
     {
         this.peer = peer;
-        pieceIdxList = new LinkedList<>();
+        tickMs = Math.max(1, peer.getConfig().TimeoutTick);
 
-        thread = new Thread(this);
+        thread = Threads.newThread(this, "RequestTimedOutThread");
     }
 
     @Override
     public void run()
     {
+        long start = System.nanoTime(); // monotonic, ticks don't jump when the wall clock is set
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+
         while (!thread.isInterrupted())
         {
             try
             {
-                Thread.sleep(1000);
-                long curTime = System.currentTimeMillis();
-                LinkedList<Integer> timeout = new LinkedList<>();
+                // sleep until the next tick, without accumulating drift
+                long sleep = start + (currentTick() + 1) * tickNanos - System.nanoTime();
+                if (sleep > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleep);
 
-                synchronized (pieceIdxList)
+                List<RequestInfo> timeout = new ArrayList<>();
+                synchronized (requests)
                 {
-                    Iterator<RequestInfo> it = pieceIdxList.iterator();
-                    while (it.hasNext())
+                    currentTick++;
+                    RequestInfo r = wheel[(int) (currentTick % WHEEL_SIZE)];
+                    while (r != null)
                     {
-                        RequestInfo r = it.next();
-                        if (curTime - r.timestamp_ms >= MAX_TIMEOUT_SECOND*1000)
+                        RequestInfo next = r.next;
+                        if (r.expiryTick <= currentTick)
                         {
-                            timeout.add(r.pieceIdx);
-                            it.remove();
+                            unlink(r);
+                            requests.remove(key(r.neighborId, r.pieceIdx));
+                            timeout.add(r);
                         }
+                        r = next;
                     }
                 }
 
-                for (Integer idx : timeout)
-                    peer.requestTimeoutHandle(idx);
+                for (RequestInfo r : timeout)
+                    peer.requestTimeoutHandle(r.neighborId, r.pieceIdx, r.requestedNanos);
 
             } catch (InterruptedException e)
             {
-                e.printStackTrace();
                 break;
             }
         }
@@ -70,17 +97,126 @@ public class RequestTimedOutThread implements Runnable
 
     /**
      * Add a requested piece to monitor it
+     * @param neighborId peer ID of neighbor that the piece is requested from
+     * @param pieceIdx index of piece, or of block if pieces are split into blocks
+     * @param timeoutMs the piece times out after this many milliseconds
+     */
+    public void addRequestingPiece(int neighborId, int pieceIdx, long timeoutMs)
+    {
+        long ticks = Math.max(1, (timeoutMs + tickMs - 1) / tickMs);
+
+        synchronized (requests)
+        {
+            RequestInfo r = new RequestInfo(neighborId, pieceIdx, currentTick + ticks);
+            RequestInfo old = requests.put(key(neighborId, pieceIdx), r);
+            if (old != null)
+                unlink(old);
+            link(r);
+        }
+    }
+
+    /**
+     * Stop monitoring a requested piece, e.g. when it is cancelled
+     * @param neighborId peer ID of neighbor that the piece is requested from
+     * @param pieceIdx index of piece
+     */
+    public void removeRequestingPiece(int neighborId, int pieceIdx)
+    {
+        synchronized (requests)
+        {
+            RequestInfo r = requests.remove(key(neighborId, pieceIdx));
+            if (r != null)
+                unlink(r);
+        }
+    }
+
+    /**
+     * Stop monitoring a requested piece because it is received
+     * @param neighborId peer ID of neighbor that the piece is requested from
+     * @param pieceIdx index of piece
+     * @return time since the request in nanoseconds, -1 if the piece wasn't being monitored (e.g. timed out)
+     */
+    public long answerRequestingPiece(int neighborId, int pieceIdx)
+    {
+        RequestInfo r;
+        synchronized (requests)
+        {
+            r = requests.remove(key(neighborId, pieceIdx));
+            if (r == null)
+                return -1;
+            unlink(r);
+        }
+        return System.nanoTime() - r.requestedNanos;
+    }
+
+    /**
+     * Check if a piece is requested from a neighbor and not answered yet
+     * @param neighborId peer ID of neighbor
      * @param pieceIdx index of piece
+     * @return true if monitored
      */
-    public void addRequestingPiece(int pieceIdx)
+    public boolean isRequesting(int neighborId, int pieceIdx)
+    {
+        synchronized (requests)
+        {
+            return requests.containsKey(key(neighborId, pieceIdx));
+        }
+    }
+
+    /**
+     * Number of requests being monitored
+     * @return number of requests
+     */
+    public int getNumOfRequests()
+    {
+        synchronized (requests)
+        {
+            return requests.size();
+        }
+    }
+
+    private long currentTick()
     {
-        RequestInfo piece = new RequestInfo(pieceIdx, System.currentTimeMillis());
-        synchronized (pieceIdxList)
+        synchronized (requests)
         {
-            pieceIdxList.add(piece);
+            return currentTick;
         }
     }
 
+    private static long key(int neighborId, int pieceIdx)
+    {
+        return ((long) neighborId << 32) | (pieceIdx & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Insert a request into the slot of its expiry tick, the caller holds the lock of requests
+     * @param r request
+     */
+    private void link(RequestInfo r)
+    {
+        int slot = (int) (r.expiryTick % WHEEL_SIZE);
+        r.prev = null;
+        r.next = wheel[slot];
+        if (wheel[slot] != null)
+            wheel[slot].prev = r;
+        wheel[slot] = r;
+    }
+
+    /**
+     * Remove a request from its slot, the caller holds the lock of requests
+     * @param r request
+     */
+    private void unlink(RequestInfo r)
+    {
+        if (r.prev != null)
+            r.prev.next = r.next;
+        else
+            wheel[(int) (r.expiryTick % WHEEL_SIZE)] = r.next;
+        if (r.next != null)
+            r.next.prev = r.prev;
+        r.prev = r.next = null;
+    }
+
     /**
      * Start this thread
      */
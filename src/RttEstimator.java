@@ -0,0 +1,106 @@
+/**
+ * Smoothed REQUEST-to-PIECE round-trip time of a neighbor and the request timeout derived from it, computed like the
+ * retransmission timeout of TCP (RFC 6298): SRTT and RTTVAR are updated with gains 1/8 and 1/4, the timeout is
+ * SRTT + max(tick, 4 * RTTVAR), bounded by Config.MinRequestTimeout and MAX_TIMEOUT_MS, and doubled after a
+ * timeout until the next sample. The requests already sent when the timeout is doubled don't double it again, so a
+ * stall backs off once and not once per request in flight.
+ */
+public class RttEstimator
+{
+    private static final long MAX_TIMEOUT_MS = 60000;
+
+    private double srtt = -1; // ms, -1 before the first sample
+    private double rttvar = 0;
+    private long timeout;
+    private long samples = 0;
+    private long timeouts = 0;
+    private boolean backedOff = false;
+    private long lastBackoffNanos; // System.nanoTime() of the last backoff
+    private final int tickMs;
+    private final int minTimeoutMs;
+
+    /**
+     * @param config settings of the peer: RequestTimeout is the timeout before the first sample, TimeoutTick and
+     *               MinRequestTimeout bound the computed timeout
+     */
+    RttEstimator(Config config)
+    {
+        timeout = config.RequestTimeout;
+        tickMs = config.TimeoutTick;
+        minTimeoutMs = config.MinRequestTimeout;
+    }
+
+    /**
+     * Update the estimate with a measured round-trip time
+     * @param rttMs time between REQUEST and PIECE, in milliseconds
+     */
+    public synchronized void addSample(double rttMs)
+    {
+        if (srtt < 0)
+        {
+            srtt = rttMs;
+            rttvar = rttMs / 2;
+        }
+        else
+        {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        samples++;
+
+        long rto = (long) Math.ceil(srtt + Math.max(tickMs, 4 * rttvar));
+        timeout = Math.min(MAX_TIMEOUT_MS, Math.max(minTimeoutMs, rto));
+    }
+
+    /**
+     * A request timed out, back off unless it was sent before the last backoff
+     * @param requestedNanos System.nanoTime() when the request was sent
+     */
+    public synchronized void onTimeout(long requestedNanos)
+    {
+        timeouts++;
+        if (backedOff && requestedNanos - lastBackoffNanos < 0)
+            return;
+
+        timeout = Math.min(MAX_TIMEOUT_MS, timeout * 2);
+        backedOff = true;
+        lastBackoffNanos = System.nanoTime();
+    }
+
+    /**
+     * Current request timeout
+     * @return timeout in milliseconds
+     */
+    public synchronized long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Smoothed round-trip time
+     * @return SRTT in milliseconds, -1 if not measured yet
+     */
+    public synchronized double getSrtt()
+    {
+        return srtt;
+    }
+
+    /**
+     * Round-trip time variation
+     * @return RTTVAR in milliseconds
+     */
+    public synchronized double getRttvar()
+    {
+        return rttvar;
+    }
+
+    public synchronized long getSamples()
+    {
+        return samples;
+    }
+
+    public synchronized long getTimeouts()
+    {
+        return timeouts;
+    }
+}
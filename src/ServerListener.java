@@ -1,6 +1,8 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 public class ServerListener implements Runnable
 {
@@ -13,7 +15,8 @@ public class ServerListener implements Runnable
         this.thisPeer = thisPeer;
         this.serverPort = port;
 
-        welcomeSocket = new ServerSocket(port);
+        // accepted sockets of a ServerSocketChannel have a channel, which PeerThread needs for zero-copy
+        welcomeSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
     }
 
     @Override
@@ -30,9 +33,9 @@ public class ServerListener implements Runnable
                 System.out.println("new connection");
 
                 PeerThread peerThread = new PeerThread(thisPeer, null, connectionSocket, false);
-                new Thread(peerThread).start();
+                peerThread.start();
 
-                thisPeer.addPeerThread(peerThread);
+                thisPeer.addConnection(peerThread);
             }
         }
         catch (IOException e)
@@ -0,0 +1,85 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of neighbor connections and schedulers. In the "virtual" mode they all come from a single
+ * virtual thread factory (Thread.ofVirtual(), JDK 21+). The mode is shared by all peers of the JVM. The factory is looked up by reflection so that the
+ * program still compiles and runs on older JDKs, where it falls back to platform threads.
+ */
+public class Threads
+{
+    private static String mode = Config.THREADS_PLATFORM;
+    private static ThreadFactory factory;
+    private static boolean virtual;
+
+    /**
+     * Select the kind of threads, before any thread is created
+     * @param threadMode Config.THREADS_PLATFORM or Config.THREADS_VIRTUAL
+     */
+    public static synchronized void setMode(String threadMode)
+    {
+        mode = threadMode;
+        factory = null;
+        virtual = false;
+    }
+
+    /**
+     * Create a thread, not started
+     * @param task task to run
+     * @param name name of the thread
+     * @return thread
+     */
+    public static Thread newThread(Runnable task, String name)
+    {
+        Thread t = getFactory().newThread(task);
+        t.setName(name);
+        return t;
+    }
+
+    /**
+     * Create and start a thread
+     * @param task task to run
+     * @param name name of the thread
+     * @return thread
+     */
+    public static Thread start(Runnable task, String name)
+    {
+        Thread t = newThread(task, name);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Check if threads are virtual
+     * @return true if virtual threads are used
+     */
+    public static synchronized boolean isVirtual()
+    {
+        getFactory();
+        return virtual;
+    }
+
+    private static synchronized ThreadFactory getFactory()
+    {
+        if (factory != null)
+            return factory;
+
+        if (mode.equals(Config.THREADS_VIRTUAL))
+        {
+            try
+            {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method toFactory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                factory = (ThreadFactory) toFactory.invoke(builder);
+                virtual = true;
+                return factory;
+            } catch (ReflectiveOperationException e)
+            {
+                System.out.println("Virtual threads need JDK 21 or later, using platform threads");
+            }
+        }
+
+        factory = Thread::new;
+        return factory;
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the outbound path of all connections: messages queued, write calls on the sockets (each one is a
+ * syscall) and bytes written. Fewer writes per message means that messages are coalesced. The writes per message and
+ * the bytes per write are computed from these counters where the metrics are read, e.g. over the last minute.
+ */
+public class WriteStats
+{
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Count a message queued to be sent
+     */
+    public void addMessage()
+    {
+        messages.increment();
+    }
+
+    /**
+     * Count a write call on a socket
+     * @param length number of bytes written by the call
+     */
+    public void addWrite(long length)
+    {
+        writes.increment();
+        bytes.add(length);
+    }
+
+    public long getMessages()
+    {
+        return messages.sum();
+    }
+
+    public long getWrites()
+    {
+        return writes.sum();
+    }
+
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+}
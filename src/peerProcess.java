@@ -11,13 +11,6 @@ import java.util.List;
  */
 public class peerProcess
 {
-    public static int NumOfPreferredNeighbors = 2;
-    public static int UnchokingInterval = 5;
-    public static int OptimisticUnchokingInterval = 15;
-    public static String FileName = "TheFile.dat";
-    public static long FileSize = 10000232;
-    public static int PieceSize = 32768;
-
     private static final String COMMON_CFG_PATH = "Common.cfg";
     private static final String PEERINFO_CFG_PATH = "PeerInfo.cfg";
 
@@ -37,70 +30,21 @@ public class peerProcess
             System.out.println("No command line arguments found");
         }
 
-        createPeerDir(peerId);
-        Log.initialization(peerId);
+        Config config = Config.read(COMMON_CFG_PATH);
+        Threads.setMode(config.ThreadMode); // before any thread is created
 
-        readCommonCfg();
-        List<PeerInfo> peerList = readPeerCfg();
+        List<PeerInfo> peerList = readPeerCfg(PEERINFO_CFG_PATH);
 
-        Peer peer = new Peer(peerId, peerList);
+        Peer peer = new Peer(peerId, peerList, config, new File("."));
         peer.start();
-
-        Log.exit();
-    }
-
-    /**
-     * read Common.cfg and update the attributes
-     */
-    private static void readCommonCfg() throws IOException
-    {
-        BufferedReader reader = new BufferedReader(new FileReader(COMMON_CFG_PATH));
-
-        String st = reader.readLine();
-        String[] tokens = st.split("\\s+");
-        NumOfPreferredNeighbors = Integer.parseInt(tokens[1]);
-
-        st = reader.readLine();
-        tokens = st.split("\\s+");
-        UnchokingInterval = Integer.parseInt(tokens[1]);
-
-        st = reader.readLine();
-        tokens = st.split("\\s+");
-        OptimisticUnchokingInterval = Integer.parseInt(tokens[1]);
-
-        st = reader.readLine();
-        tokens = st.split("\\s+");
-        FileName = tokens[1];
-
-        st = reader.readLine();
-        tokens = st.split("\\s+");
-        FileSize = Integer.parseInt(tokens[1]);
-
-        st = reader.readLine();
-        tokens = st.split("\\s+");
-        PieceSize = Integer.parseInt(tokens[1]);
-
-        reader.close();
-    }
-
-    /**
-     * Print out the common cfg
-     */
-    private static void printCommonCfg()
-    {
-        System.out.println("Number of Preferred Neighbors:" + NumOfPreferredNeighbors);
-        System.out.println("Unchoking Interval:" + UnchokingInterval);
-        System.out.println("Optimistic Unchoking Interval:" + OptimisticUnchokingInterval);
-        System.out.println("File Name:" + FileName);
-        System.out.println("File Size:" + FileSize);
-        System.out.println("Piece Size:" + PieceSize);
     }
 
     /**
      * Read PeerInfo.cfg
+     * @param path path of the file
      * @return list of PeerInfo
      */
-    private static List<PeerInfo> readPeerCfg() throws IOException
+    static List<PeerInfo> readPeerCfg(String path) throws IOException
     {
         int peerID;
         int listeningPort;
@@ -113,7 +57,7 @@ public class peerProcess
         // read each peer
         // create an object peerInfo for each
         // Add that peer to peerInfoList
-        BufferedReader reader = new BufferedReader(new FileReader(PEERINFO_CFG_PATH));
+        BufferedReader reader = new BufferedReader(new FileReader(path));
 
         String st;
         while ((st = reader.readLine()) != null)
@@ -130,17 +74,4 @@ public class peerProcess
 
         return peerInfoList;
     }
-
-    /**
-     * Create peer subdirectory if not exist
-     * @param peerId this peer ID
-     * @throws IOException
-     */
-    private static void createPeerDir(int peerId) throws IOException
-    {
-        File peerDir = new File("peer_" + peerId);
-        if (!peerDir.exists())
-            if (!peerDir.mkdir())
-                throw new IOException("Can't create peer directory");
-    }
 }